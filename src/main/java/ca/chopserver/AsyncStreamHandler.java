@@ -0,0 +1,233 @@
+package ca.chopserver;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.ErrorManager;
+import java.util.logging.Formatter;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+
+/**
+ * An asynchronous alternative to <tt>ImmediateStreamHandler</tt>. Publishing only places the record in a
+ * bounded ring buffer along with the publishing thread's name, after having the record find its caller
+ * while the caller is still on the stack; a background thread formats records in batches and flushes
+ * once enough output has built up or enough time has passed. Whatever is buffered is written out on
+ * <tt>close</tt>, which is also run from a shutdown hook so records survive a <tt>System.exit</tt>.
+ */
+public final class AsyncStreamHandler extends Handler {
+
+    /**
+     * What to do with a record published while the ring buffer is full.
+     */
+    public enum Overflow {
+        DROP,
+        BLOCK
+    }
+
+    public static final int DEFAULT_CAPACITY = 8192;
+    public static final int DEFAULT_FLUSH_CHARS = 8192;
+    public static final long DEFAULT_FLUSH_MILLIS = 250;
+
+    static final int BATCH = 256;
+
+    /**
+     * A queued record and the name of the thread that published it, which the drainer can't tell.
+     */
+    static final class Published {
+        final LogRecord record;
+        final String thread;
+
+        Published(LogRecord record, String thread) {
+            this.record = record;
+            this.thread = thread;
+        }
+    }
+
+    BlockingQueue<Published> ring;
+    Overflow overflow;
+    int flushChars;
+    long flushMillis;
+
+    Writer writer;
+    Thread drainer;
+    volatile boolean closed;
+
+    LongAdder published;
+    LongAdder dropped;
+
+    /**
+     * Create an <tt>AsyncStreamHandler</tt> with a given <tt>Formatter</tt> and output stream,
+     * dropping records when full and flushing every 8K characters or quarter second.
+     * <p>
+     * @param output      the target output stream
+     * @param formatter   Formatter to be used to format output
+     */
+    public AsyncStreamHandler(OutputStream output, Formatter formatter) {
+        this(output, formatter, DEFAULT_CAPACITY, Overflow.DROP, DEFAULT_FLUSH_CHARS, DEFAULT_FLUSH_MILLIS);
+    }
+
+    /**
+     * Create an <tt>AsyncStreamHandler</tt> with an explicit buffering policy.
+     * <p>
+     * @param output       the target output stream
+     * @param formatter    Formatter to be used to format output
+     * @param capacity     records held before the overflow policy applies
+     * @param overflow     whether to drop records or block publishers when full
+     * @param flushChars   characters written before a flush is forced
+     * @param flushMillis  longest time written output waits for a flush
+     */
+    public AsyncStreamHandler(OutputStream output, Formatter formatter, int capacity, Overflow overflow,
+                              int flushChars, long flushMillis) {
+        setFormatter(formatter);
+
+        ring = new ArrayBlockingQueue<>(capacity);
+        this.overflow = overflow;
+        this.flushChars = flushChars;
+        this.flushMillis = flushMillis;
+
+        writer = new BufferedWriter(new OutputStreamWriter(output), Math.max(flushChars, 1024) * 2);
+        closed = false;
+
+        published = new LongAdder();
+        dropped = new LongAdder();
+
+        drainer = new Thread(this::drain, "log-drainer");
+        drainer.setDaemon(true);
+        drainer.start();
+
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close, "log-shutdown"));
+    }
+
+    /**
+     * Queue a <tt>LogRecord</tt> for the background thread, never formats or writes on the caller.
+     * <p>
+     * @param  record  description of the log event. A null record is
+     *                 silently ignored and is not published
+     */
+    @Override
+    public void publish(LogRecord record) {
+        if (closed || !isLoggable(record)) {
+            return;
+        }
+
+        // the source is inferred from the stack on first use, which on the drainer would find no caller
+        Formatter formatter = getFormatter();
+        if (!(formatter instanceof LogFormatter pattern) || pattern.usesSource) {
+            record.getSourceClassName();
+        }
+
+        Published entry = new Published(record, Thread.currentThread().getName());
+        if (overflow == Overflow.BLOCK) {
+            try {
+                ring.put(entry);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                dropped.increment();
+                return;
+            }
+        } else if (!ring.offer(entry)) {
+            dropped.increment();
+            return;
+        }
+        published.increment();
+    }
+
+    /**
+     * Write out whatever the background thread has formatted so far.
+     */
+    @Override
+    public void flush() {
+        synchronized (this) {
+            try {
+                writer.flush();
+            } catch (IOException ioe) {
+                reportError(null, ioe, ErrorManager.FLUSH_FAILURE);
+            }
+        }
+    }
+
+    /**
+     * Stop accepting records, write out everything still queued and flush, but do <b>not</b>
+     * close the <tt>OutputStream</tt>.
+     */
+    @Override
+    public void close() throws SecurityException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        try {
+            drainer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+
+    /**
+     * Records accepted into the ring buffer.
+     */
+    public long published() {
+        return published.sum();
+    }
+
+    /**
+     * Records thrown away because the ring buffer was full.
+     */
+    public long dropped() {
+        return dropped.sum();
+    }
+
+    void drain() {
+        List<Published> batch = new ArrayList<>(BATCH);
+        int unflushed = 0;
+        long lastFlush = System.currentTimeMillis();
+
+        while (!closed || !ring.isEmpty()) {
+            try {
+                Published first = ring.poll(flushMillis, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    ring.drainTo(batch, BATCH - 1);
+                }
+            } catch (InterruptedException ie) {
+                // only close stops the drainer, keep going until the ring is empty
+            }
+
+            synchronized (this) {
+                Formatter formatter = getFormatter();
+                for (Published entry : batch) {
+                    try {
+                        // the thread column names the publisher, not this thread
+                        String line = (formatter instanceof LogFormatter pattern)
+                                ? pattern.format(entry.record, entry.thread)
+                                : formatter.format(entry.record);
+                        writer.write(line);
+                        unflushed += line.length();
+                    } catch (Exception e) {
+                        reportError(null, e, ErrorManager.WRITE_FAILURE);
+                    }
+                }
+            }
+            batch.clear();
+
+            // flush on whichever comes first, enough output or enough time
+            long now = System.currentTimeMillis();
+            if (unflushed > 0 && (unflushed >= flushChars || now - lastFlush >= flushMillis)) {
+                flush();
+                unflushed = 0;
+                lastFlush = now;
+            }
+        }
+    }
+}
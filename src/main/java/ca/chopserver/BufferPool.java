@@ -0,0 +1,162 @@
+package ca.chopserver;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Size-classed pool of direct buffers carved out of shared slabs. Each thread keeps a small cache per
+ * size class in front of the shared free lists, so a buffer released on the thread that acquires it
+ * next never touches shared state. Virtual threads go straight to the shared lists, see <tt>cache</tt>.
+ * Every <tt>acquire</tt> must be paired with exactly one <tt>release</tt>.
+ */
+public class BufferPool {
+
+    public static final BufferPool DEFAULT = new BufferPool();
+
+    static final int MIN_SHIFT = 6;
+    static final int MAX_SHIFT = 16;
+    static final int SLAB_SIZE = 256 * 1024;
+    static final int CACHE_SIZE = 32;
+
+    Queue<ByteBuffer>[] shared;
+    ByteBuffer[] slabs;
+    ThreadLocal<ArrayDeque<ByteBuffer>[]> caches;
+
+    LongAdder hits;
+    LongAdder misses;
+    LongAdder outstanding;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BufferPool() {
+        int classes = MAX_SHIFT - MIN_SHIFT + 1;
+
+        shared = new Queue[classes];
+        for (int i = 0; i < classes; i++) {
+            shared[i] = new ConcurrentLinkedQueue<>();
+        }
+        slabs = new ByteBuffer[classes];
+        caches = ThreadLocal.withInitial(() -> {
+            ArrayDeque<ByteBuffer>[] ret = new ArrayDeque[classes];
+            for (int i = 0; i < classes; i++) {
+                ret[i] = new ArrayDeque<>(CACHE_SIZE);
+            }
+            return ret;
+        });
+
+        hits = new LongAdder();
+        misses = new LongAdder();
+        outstanding = new LongAdder();
+    }
+
+    /**
+     * Take a cleared buffer with at least <tt>size</tt> bytes of capacity. Sizes above the largest class
+     * are allocated directly and are not pooled on release.
+     */
+    public ByteBuffer acquire(int size) {
+        outstanding.increment();
+
+        int index = sizeClass(size);
+        if (index < 0) {
+            misses.increment();
+            return ByteBuffer.allocateDirect(size);
+        }
+
+        // thread cache first, then the shared free list, then fresh slab memory
+        ArrayDeque<ByteBuffer> cache = cache(index);
+        ByteBuffer ret = (cache != null) ? cache.pollLast() : null;
+        if (ret == null) {
+            ret = shared[index].poll();
+        }
+
+        if (ret != null) {
+            hits.increment();
+            ret.clear();
+        } else {
+            misses.increment();
+            ret = carve(index);
+        }
+        return ret;
+    }
+
+    /**
+     * Return a buffer obtained from <tt>acquire</tt>. The caller must not touch it afterwards.
+     */
+    public void release(ByteBuffer buffer) {
+        outstanding.decrement();
+
+        int index = sizeClass(buffer.capacity());
+        if (index < 0 || !buffer.isDirect() || buffer.isReadOnly() || buffer.capacity() != 1 << (index + MIN_SHIFT)) {
+            return;
+        }
+
+        ArrayDeque<ByteBuffer> cache = cache(index);
+        if (cache != null && cache.size() < CACHE_SIZE) {
+            cache.offerLast(buffer);
+        } else {
+            shared[index].offer(buffer);
+        }
+    }
+
+    /**
+     * The calling thread's cache for a size class, or null on a virtual thread. A virtual thread per
+     * connection reads on one thread and writes on another, so its cache would fill with buffers that
+     * nothing acquires again and would be lost with the thread, pinning their slabs.
+     */
+    ArrayDeque<ByteBuffer> cache(int index) {
+        if (Thread.currentThread().isVirtual()) {
+            return null;
+        }
+        return caches.get()[index];
+    }
+
+    /**
+     * Number of acquires served from a cache or free list.
+     */
+    public long hits() {
+        return hits.sum();
+    }
+
+    /**
+     * Number of acquires that needed new memory.
+     */
+    public long misses() {
+        return misses.sum();
+    }
+
+    /**
+     * Buffers acquired and not yet released, a steadily growing value means a leak.
+     */
+    public long outstanding() {
+        return outstanding.sum();
+    }
+
+    static int sizeClass(int size) {
+        if (size > 1 << MAX_SHIFT) {
+            return -1;
+        }
+        int shift = 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1);
+        return Math.max(shift, MIN_SHIFT) - MIN_SHIFT;
+    }
+
+    ByteBuffer carve(int index) {
+        int width = 1 << (index + MIN_SHIFT);
+
+        synchronized (slabs) {
+            ByteBuffer slab = slabs[index];
+            if (slab == null || slab.remaining() < width) {
+                slab = ByteBuffer.allocateDirect(Math.max(SLAB_SIZE, width));
+                slabs[index] = slab;
+            }
+
+            // hand out the next slice of the slab
+            slab.limit(slab.position() + width);
+            ByteBuffer ret = slab.slice();
+            slab.position(slab.limit());
+            slab.limit(slab.capacity());
+            return ret;
+        }
+    }
+}
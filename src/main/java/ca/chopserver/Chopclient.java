@@ -95,9 +95,7 @@ public class Chopclient {
                     break;
             }
 
-            client.operationLock.lock();
             Chopserver.send(client, data.array());
-            client.operationLock.unlock();
         }
 
     }
@@ -97,28 +97,27 @@ public class Chopserver {
     static void send(Client client, byte[] data) throws ClosedChannelException {
         int previousOps = client.selectorKey.interestOps();
         client.selectorKey = client.socket.register(client.selector, previousOps | SelectionKey.OP_WRITE);
-        client.outgoing.add(data);
+        ByteBuffer buffer = BufferPool.DEFAULT.acquire(data.length);
+        buffer.put(data);
+        buffer.flip();
+        client.outgoing.offer(buffer);
     }
 
     static void write(Client client) throws IOException {
         SocketChannel target = client.socket;
-        byte[] incoming = client.outgoing.poll();
+        ByteBuffer buffer = client.outgoing.poll();
 
         // nothing to write, unregister writing and return
-        if (incoming == null) {
+        if (buffer == null) {
             client.selectorKey = target.register(client.selector, SelectionKey.OP_READ);
             return;
         }
 
-        ByteBuffer buffer = ByteBuffer.allocate(incoming.length);
-        buffer.clear();
-        buffer.put(incoming);
-        buffer.flip();
-
         // we have to write the entire segment of data
         while (buffer.hasRemaining()) {
             target.write(buffer);
         }
+        BufferPool.DEFAULT.release(buffer);
 
         // nothing left to write, unregister for writing
         if (client.outgoing.isEmpty()) {
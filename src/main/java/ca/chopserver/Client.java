@@ -1,13 +1,30 @@
 package ca.chopserver;
 
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ProtocolException;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.channels.*;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Handler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -19,10 +36,26 @@ public class Client implements Runnable {
         for (Handler handler : rootLogger.getHandlers()) {
             rootLogger.removeHandler(handler);
         }
-        rootLogger.addHandler(new ImmediateStreamHandler(System.out, new LogFormatter()));
+        rootLogger.addHandler(new AsyncStreamHandler(System.out, new LogFormatter()));
+        if (Boolean.getBoolean("chopserver.trace")) {
+            rootLogger.setLevel(Level.FINE);
+        }
 
         InetSocketAddress target = new InetSocketAddress("127.0.0.1", 50001);
-        Client instance = new Client(target, 255);
+
+        // -Dchopserver.keystore=server.p12 trusts the server's self-signed key and speaks TLS
+        String keystore = System.getProperty("chopserver.keystore");
+        Client instance;
+        if (keystore != null) {
+            char[] password = System.getProperty("chopserver.keystore.password", "changeit").toCharArray();
+            try {
+                instance = new Client(target, 255, SecureChannel.context(Path.of(keystore), password));
+            } catch (GeneralSecurityException gse) {
+                throw new IOException("Failed to load " + keystore, gse);
+            }
+        } else {
+            instance = new Client(target, 255);
+        }
         Thread thread = new Thread(instance);
         thread.start();
 
@@ -30,120 +63,283 @@ public class Client implements Runnable {
         while (true) {
             String input = console.nextLine();
             byte[] text = input.getBytes();
-            ByteBuffer data = ByteBuffer.allocate(Packet.HEADER_LEN);
+            ByteBuffer data;
 
             switch (input) {
                 case "exit":
-                    data.put(StatusType.ESCAPE.bytes());
+                    data = StatusType.ESCAPE.frame();
                     break;
                 case "ping":
-                    data.put(EnquiryType.NORMAL.bytes());
+                    data = EnquiryType.NORMAL.frame();
                     break;
                 case "pingret":
-                    data.put(EnquiryType.RETURN.bytes());
+                    data = EnquiryType.RETURN.frame();
                     break;
                 case "pingtime":
-                    data = ByteBuffer.allocate(Packet.HEADER_LEN + Long.BYTES);
-                    data.put(EnquiryType.TIME.bytes((byte) Long.BYTES));
-                    data.putLong(System.currentTimeMillis());
+                    data = EnquiryType.timeRequest(instance.clock);
                     break;
                 case "pingtimeret":
-                    data.put(EnquiryType.RETURN_TIME.bytes());
+                    data = EnquiryType.RETURN_TIME.frame();
                     break;
                 case "sleep":
-                    data.put(StatusType.IDLE.bytes());
+                    data = StatusType.IDLE.frame();
                     break;
                 case "wake":
-                    data.put(StatusType.WAKEUP.bytes());
+                    data = StatusType.WAKEUP.frame();
                     break;
                 case "break":
-                    data.put(new byte[]{Packet.NULL, Packet.START_TEXT, (byte) 1, (byte) 4});
+                    data = StatusType.START_TEXT.frame((byte) 1, (byte) 4);
                     break;
                 default:
-                    data = ByteBuffer.allocate(Packet.HEADER_LEN + text.length);
-                    data.put(StatusType.START_TEXT.bytes(text));
+                    data = StatusType.START_TEXT.frame(text);
                     break;
             }
 
-            instance.send(Arrays.copyOf(data.array(), data.array().length));
-            instance.selector.wakeup();
+            instance.send(data);
         }
     }
 
-    public ReentrantLock operationLock;
+    /**
+     * What <tt>send</tt> does while queued bytes are above the high watermark.
+     */
+    public enum Backpressure {
+        BLOCK,
+        FAIL_FAST,
+        DROP_OLDEST
+    }
+
+    /**
+     * Handler or listener work for <tt>executor</tt>, see <tt>offload</tt>.
+     */
+    interface Work {
+        void run() throws IOException;
+    }
+
+    public static final long DEFAULT_HIGH_WATERMARK = 1024 * 1024;
+    public static final long DEFAULT_LOW_WATERMARK = 512 * 1024;
+    public static final int DEFAULT_MAX_BACKLOG = 1024;
+
+    static final int WRITE_BATCH = 64;
+
     public Selector selector;
+    public InterestQueue interests;
+
+    /**
+     * TLS between this client and its socket, null for plaintext. See <tt>secure</tt>.
+     */
+    public SecureChannel tls;
+    public WheelTimer timer;
     public SocketChannel socket;
     public SelectionKey selectorKey;
+    public volatile Thread reader;
+    public volatile Thread writer;
     public Logger logger;
+    public String remote;
+
+    /**
+     * Names this connection can be addressed by in a broadcast, safe to change from any thread.
+     */
+    public Set<String> groups;
+
+    FrameDecoder decoder;
+    ByteBuffer[] writeBatch;
+    SharedBuffer[] batchOwners;
+    int batchCount;
+    public SectionListener sections;
+    public HandlerRegistry handlers;
+    public Correlator correlator;
+
+    /**
+     * Round trip time and clock offset to the peer, from <tt>TIME</tt> enquiries either side sends.
+     */
+    public ClockSync clock;
+
+    /**
+     * Runs handlers off the selector thread when set, in the order packets arrived. Selector engine only.
+     */
+    public Executor executor;
+    public volatile int maxBacklog;
+    AtomicInteger backlog;
+    volatile boolean backlogged;
+
+    /**
+     * Where this connection counts its frames and handler times, if anywhere.
+     */
+    public Metrics metrics;
+
+    // this connection's own traffic, in counted only by the reading thread and out only by the writing one
+    volatile long framesIn;
+    volatile long bytesIn;
+    volatile long framesOut;
+    volatile long bytesOut;
 
-    ByteBuffer inBuffer;
-    ByteBuffer outBuffer;
     public Queue<byte[]> incoming;
-    public Queue<byte[]> outgoing;
+    public MpscQueue<ByteBuffer> outgoing;
+
+    AtomicBoolean writeRequested;
+
+    public volatile long highWatermark;
+    public volatile long lowWatermark;
+    public volatile Backpressure backpressure;
+    AtomicLong pendingBytes;
+    volatile boolean writable;
+    // a lock rather than a monitor, so blocked virtual threads release their carriers while they wait
+    ReentrantLock drainLock;
+    Condition writability;
+    long dropped;
 
     public int window;
     public int incomingFlag;
     public int outgoingFlag;
 
+    WheelTimer.Timeout heartbeat;
+    volatile int missed;
+
+    // set once the connection should close as soon as everything queued has been written
+    volatile boolean closing;
+
     /**
      * Start as clientside, automatically connects and registers with personal selector.
      * Needs to be fed to a thread in order to run independently.
      */
+    @SuppressWarnings("this-escape")
     public Client(SocketAddress host, int window) throws IOException {
         socket = SocketChannel.open();
         socket.configureBlocking(false);
 
         selector = Selector.open();
-
-        operationLock = new ReentrantLock();
-        incoming = new LinkedList<>();
-        outgoing = new LinkedList<>();
-        logger = Logger.getLogger(host.toString());
+        interests = new InterestQueue(selector);
+        timer = new WheelTimer(interests);
+        writeRequested = new AtomicBoolean(false);
+
+        highWatermark = DEFAULT_HIGH_WATERMARK;
+        lowWatermark = DEFAULT_LOW_WATERMARK;
+        backpressure = Backpressure.BLOCK;
+        pendingBytes = new AtomicLong();
+        writable = true;
+        drainLock = new ReentrantLock();
+        writability = drainLock.newCondition();
+        dropped = 0;
+        closing = false;
+
+        incoming = new ConcurrentLinkedQueue<>();
+        handlers = HandlerRegistry.DEFAULT;
+        correlator = new Correlator();
+        clock = new ClockSync();
+        maxBacklog = DEFAULT_MAX_BACKLOG;
+        backlog = new AtomicInteger();
+        backlogged = false;
+        outgoing = new MpscQueue<>();
+        remote = host.toString();
+        groups = ConcurrentHashMap.newKeySet();
+        logger = Logger.getLogger(remote);
 
         this.window = window;
         incomingFlag = 0;
         outgoingFlag = 0;
 
-        inBuffer = ByteBuffer.allocate(window);
-        outBuffer = ByteBuffer.allocate(window);
+        decoder = new FrameDecoder(window);
+        writeBatch = new ByteBuffer[WRITE_BATCH];
+        batchOwners = new SharedBuffer[WRITE_BATCH];
+        batchCount = 0;
 
-        logger.info("Connecting to " + host);
-        if (!socket.connect(host)) {
-            selectorKey = socket.register(selector, SelectionKey.OP_CONNECT);
+        logger.info(() -> "Connecting to " + remote);
+        if (socket.connect(host)) {
+            selectorKey = socket.register(selector, SelectionKey.OP_READ, this);
+        } else {
+            selectorKey = socket.register(selector, SelectionKey.OP_CONNECT, this);
             logger.info("Instant connection failed, queueing to finish connection.");
         }
     }
 
+    /**
+     * Start as clientside over TLS. The engine is created for the target's host and port so a later
+     * connection to the same server can resume this one's session.
+     */
+    @SuppressWarnings("this-escape")
+    public Client(InetSocketAddress host, int window, SSLContext context) throws IOException {
+        this(host, window);
+        SSLEngine engine = context.createSSLEngine(host.getHostString(), host.getPort());
+        engine.setUseClientMode(true);
+        secure(engine, ForkJoinPool.commonPool());
+    }
+
     /**
      * Start as serverside, automatically registers with serverside selector.
      */
     public Client(Selector selector, SocketChannel socket, int window) throws IOException {
-        this.socket = socket;
-        socket.configureBlocking(false);
-        this.selector = selector;
+        this(new InterestQueue(selector), socket, window);
+    }
 
-        operationLock = new ReentrantLock();
-        incoming = new LinkedList<>();
-        outgoing = new LinkedList<>();
-        logger = Logger.getLogger(socket.getRemoteAddress().toString());
+    /**
+     * Start as serverside in blocking mode, with no selector. The channel is left blocking for a
+     * <tt>reader</tt> thread to call <tt>read</tt> on and a <tt>writer</tt> thread to call <tt>write</tt>
+     * on, which is unparked whenever something is queued.
+     */
+    public Client(SocketChannel socket, int window) throws IOException {
+        this((InterestQueue) null, socket, window);
+    }
+
+    /**
+     * Start as serverside, automatically registers with the selector behind <tt>interests</tt>.
+     * Write interest requested from other threads is applied by whoever drains <tt>interests</tt>.
+     */
+    @SuppressWarnings("this-escape")
+    public Client(InterestQueue interests, SocketChannel socket, int window) throws IOException {
+        this.socket = socket;
+        if (interests != null) {
+            socket.configureBlocking(false);
+            this.selector = interests.selector;
+        }
+        this.interests = interests;
+        writeRequested = new AtomicBoolean(false);
+
+        highWatermark = DEFAULT_HIGH_WATERMARK;
+        lowWatermark = DEFAULT_LOW_WATERMARK;
+        backpressure = Backpressure.BLOCK;
+        pendingBytes = new AtomicLong();
+        writable = true;
+        drainLock = new ReentrantLock();
+        writability = drainLock.newCondition();
+        dropped = 0;
+        closing = false;
+
+        incoming = new ConcurrentLinkedQueue<>();
+        handlers = HandlerRegistry.DEFAULT;
+        correlator = new Correlator();
+        clock = new ClockSync();
+        maxBacklog = DEFAULT_MAX_BACKLOG;
+        backlog = new AtomicInteger();
+        backlogged = false;
+        outgoing = new MpscQueue<>();
+        remote = socket.getRemoteAddress().toString();
+        groups = ConcurrentHashMap.newKeySet();
+        logger = Logger.getLogger(remote);
 
         this.window = window;
         incomingFlag = 0;
         outgoingFlag = 0;
 
-        inBuffer = ByteBuffer.allocate(window);
-        outBuffer = ByteBuffer.allocate(window);
+        decoder = new FrameDecoder(window);
+        writeBatch = new ByteBuffer[WRITE_BATCH];
+        batchOwners = new SharedBuffer[WRITE_BATCH];
+        batchCount = 0;
 
-        selectorKey = socket.register(selector, SelectionKey.OP_READ, this);
-        logger.info("Client " + socket.getRemoteAddress() + " registered as serverside object");
+        if (interests != null) {
+            selectorKey = socket.register(selector, SelectionKey.OP_READ, this);
+        }
+        logger.info(() -> "Client " + remote + " registered as serverside object");
     }
 
     // Clientside runner
     @Override
     public void run() {
+        interests.own();
         while (true) {
             try {
-                selector.select();
+                selector.select(timer.timeout());
+                interests.apply();
+                timer.advance();
                 Set<SelectionKey> selectedKeys = selector.selectedKeys();
                 Iterator<SelectionKey> keyIterator = selectedKeys.iterator();
 
@@ -160,7 +356,7 @@ public class Client implements Runnable {
                         try {
                             read();
                         } catch (IOException ioe) {
-                            logger.info("Server " + socket.getRemoteAddress() + " disconnected");
+                            logger.info(() -> "Server " + remote + " disconnected");
                             shutdown();
                             System.exit(1);
                         }
@@ -180,123 +376,631 @@ public class Client implements Runnable {
         }
     }
 
+    /**
+     * Speak TLS over this connection from now on, before anything has been sent. Delegated handshake
+     * tasks run on <tt>tasks</tt>. Selector engine only.
+     */
+    public void secure(SSLEngine engine, Executor tasks) throws IOException {
+        tls = new SecureChannel(this, engine, tasks);
+        engine.beginHandshake();
+
+        // the client speaks first, as soon as it is connected
+        if (engine.getUseClientMode() && socket.isConnected()) {
+            requestWrite();
+        }
+    }
+
     void read() throws IOException {
-        operationLock.lock();
-        // clear any previous use, ensure only head is read
-        inBuffer.clear();
-        inBuffer.limit(Packet.HEADER_LEN);
+        // read everything currently available, decoding frames as soon as they are whole,
+        // but stop as soon as replies back up past the high watermark or handlers fall behind
+        int bytesRead = 0;
+        try {
+            while (readable() && (bytesRead = (tls == null) ? socket.read(decoder.buffer()) : tls.read(decoder.buffer())) > 0) {
+                decoder.decode(this);
+            }
+        } catch (ProtocolException pe) {
+            if (metrics != null) {
+                metrics.decodeError();
+            }
+            throw pe;
+        }
 
-        // read incoming header
-        int bytesRead = socket.read(inBuffer);
         if (bytesRead < 0) {
-            logger.info("Reached end of stream, downstream disconnected");
-            return;
-        } else if (bytesRead != Packet.HEADER_LEN) {
-            logger.info("Received header is not expected length");
+            throw new IOException("Reached end of stream, downstream disconnected");
+        }
+    }
+
+    void dispatch(Packet packet) throws IOException {
+        if (logger.isLoggable(Level.FINE)) {
+            logger.fine("Incoming packet style " + packet.style());
+        }
+        framesIn++;
+        bytesIn += packet.frameLength();
+        if (metrics != null) {
+            metrics.frameIn(packet);
+        }
+
+        // acknowledgements carrying a correlation ID answer one of this side's requests
+        if (packet.head != Packet.NULL
+                && (packet.status == Packet.ACKNOWLEDGE || packet.status == Packet.NEG_ACKNOWLEDGE)) {
+            correlator.complete(packet);
+        }
+
+        if (executor == null) {
+            invoke(packet);
             return;
         }
 
-        // print packet style without modifying any buffer trackers
-        inBuffer.rewind();
-        logger.info("Incoming packet style " + inBuffer.getInt());
+        // the packet is a view over the receive buffer, the worker needs a copy of its own
+        Packet detached = packet.copy();
+        offload(() -> invoke(detached));
+    }
 
-        byte packStatus = inBuffer.get(Packet.PACKET_STATUS);
+    /**
+     * Hand work to <tt>executor</tt> behind everything handed off before it, counted in the backlog like
+     * any packet. Anything it touches of the receive buffer has to be copied first. Reading thread only.
+     */
+    void offload(Work work) {
+        backlog.incrementAndGet();
+        executor.execute(() -> handle(work));
+
+        int bound = maxBacklog;
+        if (bound > 0 && backlog.get() >= bound) {
+            backlogged = true;
+
+            // the workers may have caught up before the flag was set, in which case none of them will clear it
+            if (backlog.get() <= bound / 2) {
+                backlogged = false;
+            } else if (selectorKey != null) {
+                selectorKey.interestOps(selectorKey.interestOps() & ~SelectionKey.OP_READ);
+                logger.info(() -> "Handlers " + bound + " packets behind, suspending reads");
+            }
+        }
+    }
 
+    /**
+     * Run offloaded work on an executor thread. A handler that fails or closes the connection has it
+     * handed back to the selector thread to be disconnected.
+     */
+    void handle(Work work) {
         try {
-            StatusType status = StatusType.fromOrdinal(packStatus);
-            status.parse(this);
-        } catch (ArrayIndexOutOfBoundsException aioobe) {
-            logger.info("Undefined packet type provided, notifying downstream");
-            send(StatusType.NEG_ACKNOWLEDGE.bytes(packStatus));
-        } catch (UnsupportedOperationException uoe) {
-            logger.info("Unsupported packet type provided, notifying downstream");
-            send(StatusType.NEG_ACKNOWLEDGE.bytes(packStatus));
+            work.run();
+        } catch (IOException | RuntimeException e) {
+            logger.log(Level.INFO, "Handler failed, closing connection", e);
+            try {
+                shutdown();
+            } catch (IOException ignored) {
+            }
+        } finally {
+            // once caught up halfway, re-arm reading along with writing on the selector thread
+            if (backlog.decrementAndGet() <= maxBacklog / 2 && backlogged) {
+                backlogged = false;
+                logger.info("Handlers caught up, resuming reads");
+                requestWrite();
+            }
         }
 
-        operationLock.unlock();
+        if (!socket.isOpen()) {
+            requestWrite();
+        }
     }
 
-    void write() throws IOException {
-        operationLock.lock();
-        byte[] sending = outgoing.poll();
+    /**
+     * Run the handler for a packet, timing it when there are metrics to record into.
+     */
+    void invoke(Packet packet) throws IOException {
+        // nothing more is handled once the connection is on its way out, even packets already handed off
+        if (closing) {
+            return;
+        }
 
-        // nothing to write, unregister writing and return
-        if (sending == null) {
-            logger.info("No messages left, returning to read operations");
-            selectorKey = socket.register(selector, SelectionKey.OP_READ, this);
+        Metrics recorder = metrics;
+        if (recorder == null) {
+            handlers.dispatch(this, packet);
             return;
         }
 
-        // if a body is present, print its bytes
-        if (sending.length > Packet.HEADER_LEN) {
-            byte[] body = Arrays.copyOfRange(sending, Packet.HEADER_LEN, sending.length);
-            logger.info("Outgoing bytes: " + Arrays.toString(body));
-        }
-
-        // load data into buffer, print the style, prepare for writing
-        outBuffer.clear();
-        outBuffer.put(sending);
-        logger.info("Outgoing packet style " + outBuffer.getInt(0) + " ");
-
-        // iterating over however many buffers it takes to send all the data
-        int total = 0;
-        int remaining = sending.length;
-        int bufferCount = sending.length / window + (sending.length % window != 0 ? 1 : 0);
-        for (int i = 0; i < bufferCount; i++) {
-            // calculate how much for the n-th buffer, prepare exactly that amount to be sent
-            int expected = (window > remaining) ? remaining : window;
-            outBuffer.clear();
-            outBuffer.put(sending, total, expected);
-            outBuffer.flip();
-
-            // continue calling write until the buffer is 'emptied'
-            int sent = 0;
-            while (outBuffer.hasRemaining()) {
-                sent += socket.write(outBuffer);
+        byte status = packet.status;
+        long start = System.nanoTime();
+        try {
+            handlers.dispatch(this, packet);
+        } finally {
+            recorder.handled(status, System.nanoTime() - start);
+        }
+    }
+
+    void write() throws IOException {
+        try {
+            drain();
+        } finally {
+            // the peer may be read from again once its backlog is down to the low watermark
+            if (!writable && pendingBytes.get() <= lowWatermark) {
+                resume();
             }
+        }
 
-            remaining -= sent;
-            total += sent;
+        // input already taken off the socket while reading was held back won't be selected again
+        if (tls != null && tls.hasBufferedInput() && readable() && socket.isOpen()) {
+            read();
         }
+    }
+
+    void drain() throws IOException {
+        if (backpressure == Backpressure.DROP_OLDEST) {
+            trim();
+        }
+
+        do {
+            // top up the batch behind any frames left partially written by the last call
+            ByteBuffer next;
+            boolean tracing = logger.isLoggable(Level.FINE);
+            Metrics recorder = metrics;
+            while (batchCount < writeBatch.length && (next = outgoing.poll()) != null) {
+                if (tracing) {
+                    trace(next);
+                }
+                framesOut++;
+                bytesOut += next.remaining();
+                if (recorder != null) {
+                    recorder.frameOut(next);
+                }
+                batchOwners[batchCount] = (SharedBuffer) outgoing.attachment();
+                writeBatch[batchCount++] = next;
+            }
+
+            // nothing to write, unregister writing and return, unless the handshake or a wrapped record needs the socket
+            if (batchCount == 0) {
+                if (closing) {
+                    linger();
+                    return;
+                }
+                if (tls != null) {
+                    tls.write(writeBatch, 0, 0);
+                    if (tls.hasPendingOutput()) {
+                        return;
+                    }
+                }
+                logger.info("No messages left, returning to read operations");
+                stopWriting();
+                return;
+            }
+
+            // one gathering write for the whole batch, taking only what the socket will accept
+            long written = (tls == null) ? socket.write(writeBatch, 0, batchCount) : tls.write(writeBatch, 0, batchCount);
+            pendingBytes.addAndGet(-written);
+            if (logger.isLoggable(Level.INFO)) {
+                logger.info("Wrote " + written + " bytes from " + batchCount + " queued frames");
+            }
+
+            // hand back every frame that went out whole, keeping the rest in order for the next wakeup
+            int done = 0;
+            while (done < batchCount && !writeBatch[done].hasRemaining()) {
+                free(writeBatch[done], batchOwners[done]);
+                done++;
+            }
+            System.arraycopy(writeBatch, done, writeBatch, 0, batchCount - done);
+            System.arraycopy(batchOwners, done, batchOwners, 0, batchCount - done);
+            Arrays.fill(writeBatch, batchCount - done, batchCount, null);
+            Arrays.fill(batchOwners, batchCount - done, batchCount, null);
+            batchCount -= done;
+
+            // the rest waits for the handshake, which asks for writing again once it can go on
+            if (tls != null && tls.stalled()) {
+                stopWriting();
+                return;
+            }
+
+            // only go around again if the socket took everything and more is queued
+        } while (batchCount == 0 && !outgoing.isEmpty());
 
         // nothing left to write, unregister for writing
-        if (outgoing.isEmpty()) {
+        if (batchCount == 0 && (tls == null || !tls.hasPendingOutput())) {
+            if (closing) {
+                linger();
+                return;
+            }
             logger.info("Sending queue exhausted, returning to read operations");
-            selectorKey = socket.register(selector, SelectionKey.OP_READ, this);
+            stopWriting();
         }
-        operationLock.unlock();
     }
 
-    void establish() throws IOException {
-        operationLock.lock();
+    /**
+     * Close a connection that was asked to close once everything queued has been written, after sending
+     * a TLS close_notify. Writing stays registered while the socket has yet to take that. Writing thread only.
+     */
+    void linger() throws IOException {
+        if (tls == null || tls.closeOutbound()) {
+            logger.info("Everything queued was written, closing");
+            shutdown();
+        }
+    }
 
+    void stopWriting() {
+        if (selectorKey != null) {
+            selectorKey.interestOps(selectorKey.interestOps() & ~SelectionKey.OP_WRITE);
+        }
+    }
+
+    void stopReading() {
+        if (selectorKey != null) {
+            selectorKey.interestOps(selectorKey.interestOps() & ~SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * Throw away the oldest queued frames until back under the high watermark, consumer thread only.
+     * Frames already partly written are never dropped.
+     */
+    void trim() {
+        long high = highWatermark;
+        if (high <= 0) {
+            return;
+        }
+
+        int count = 0;
+        ByteBuffer oldest;
+        while (pendingBytes.get() > high && (oldest = outgoing.poll()) != null) {
+            pendingBytes.addAndGet(-oldest.remaining());
+            free(oldest, (SharedBuffer) outgoing.attachment());
+            count++;
+        }
+
+        if (count > 0) {
+            dropped += count;
+            int total = count;
+            logger.info(() -> "Dropped " + total + " oldest frames over the high watermark");
+        }
+    }
+
+    /**
+     * Mark the connection writable again, resuming reads and releasing any blocked senders.
+     */
+    void resume() {
+        writable = true;
+        if (selectorKey != null && selectorKey.isValid() && !backlogged) {
+            selectorKey.interestOps(selectorKey.interestOps() | SelectionKey.OP_READ);
+        }
+        signalWritability();
+        logger.info("Outgoing queue drained below low watermark, resuming reads");
+    }
+
+    /**
+     * Wire trace of a frame about to be written, only called when <tt>FINE</tt> is enabled.
+     */
+    void trace(ByteBuffer sending) {
+        // if a body is present, print its bytes
+        if (sending.remaining() > Packet.HEADER_LEN) {
+            ByteBuffer view = sending.duplicate();
+            view.position(view.position() + Packet.HEADER_LEN);
+            byte[] body = new byte[view.remaining()];
+            view.get(body);
+            logger.fine("Outgoing bytes: " + Arrays.toString(body));
+        }
+        logger.fine("Outgoing packet style " + sending.getInt(sending.position()));
+    }
+
+    void establish() throws IOException {
         // non-blocking attempt to finish connecting, should be returned to on failure as the registry is not changed
         if (socket.finishConnect()) {
-            logger.info("Connected to " + socket.getRemoteAddress());
-            selectorKey = socket.register(selector, SelectionKey.OP_READ, this);
+            logger.info(() -> "Connected to " + remote);
+            boolean sending = batchCount > 0 || !outgoing.isEmpty() || tls != null || closing;
+            selectorKey.interestOps(SelectionKey.OP_READ | (sending ? SelectionKey.OP_WRITE : 0));
         }
-
-        operationLock.unlock();
     }
 
+    /**
+     * Queue raw bytes for sending, copying them into a pooled buffer.
+     */
     public void send(byte[] data) throws IOException {
-        operationLock.lock();
+        ByteBuffer buffer = BufferPool.DEFAULT.acquire(data.length);
+        buffer.put(data);
+        buffer.flip();
+        send(buffer);
+    }
+
+    /**
+     * Queue an encoded frame for sending, safe to call from any thread. Ownership of the pooled buffer
+     * passes to this client, which releases it once written.
+     * <p>
+     * Once queued bytes pass the high watermark the connection stops reading from its peer and is no
+     * longer writable until they drain to the low watermark. In the meantime <tt>backpressure</tt>
+     * decides what happens to further sends: block the caller, fail, or queue and drop the oldest.
+     * Replies sent from the thread reading the connection are always queued, reads are already
+     * suspended by then.
+     */
+    public void send(ByteBuffer data) throws IOException {
+        enqueue(data, null);
+    }
+
+    /**
+     * Queue a frame shared with other connections, taking a reference of its own that is given back once
+     * the frame is written or dropped. Watermarks and <tt>backpressure</tt> apply as for any other send.
+     */
+    public void send(SharedBuffer frame) throws IOException {
+        frame.retain();
+        enqueue(frame.view(), frame);
+    }
+
+    /**
+     * Queue a frame shared with other connections without ever waiting, returning false if it wasn't
+     * taken. Where <tt>send</tt> would block above the high watermark this refuses the frame instead, so a
+     * broadcast running on some other selector thread can't stall behind this connection.
+     */
+    boolean offer(SharedBuffer frame) {
+        if (!socket.isOpen() || closing) {
+            return false;
+        }
+        if (!writable && !onReader() && backpressure != Backpressure.DROP_OLDEST) {
+            return false;
+        }
+
+        frame.retain();
+        try {
+            queue(frame.view(), frame);
+        } catch (IOException ioe) {
+            // queue has already given the reference back
+            return false;
+        }
+        return true;
+    }
+
+    void enqueue(ByteBuffer data, SharedBuffer owner) throws IOException {
+        if (!socket.isOpen() || closing) {
+            free(data, owner);
+            throw new ClosedChannelException();
+        }
+
+        if (!writable && !onReader()) {
+            switch (backpressure) {
+                case FAIL_FAST:
+                    free(data, owner);
+                    throw new IOException("Outgoing queue is above its high watermark");
+                case BLOCK:
+                    try {
+                        awaitDrain();
+                    } catch (IOException ioe) {
+                        free(data, owner);
+                        throw ioe;
+                    }
+                    break;
+                case DROP_OLDEST:
+                    // the selector thread trims the queue before writing
+                    break;
+            }
+        }
+
+        queue(data, owner);
+    }
+
+    /**
+     * Put a frame on the outgoing queue and ask for it to be written, whatever the watermarks say.
+     */
+    void queue(ByteBuffer data, SharedBuffer owner) throws IOException {
+        // never waits on the selector thread, only fails if the queue is bounded and full
+        int size = data.remaining();
+        if (!outgoing.offer(data, owner)) {
+            free(data, owner);
+            throw new IOException("Outgoing queue is full");
+        }
+        logger.info("Data queued for sending");
+
+        long high = highWatermark;
+        if (pendingBytes.addAndGet(size) >= high && high > 0 && writable) {
+            writable = false;
+            logger.info(() -> "Outgoing queue passed high watermark of " + high + " bytes, suspending reads");
+        }
+
+        requestWrite();
+    }
+
+    /**
+     * Send an answer to a request, echoing the request's correlation ID in the head byte.
+     */
+    public void reply(byte head, ByteBuffer frame) throws IOException {
+        frame.put(frame.position(), head);
+        send(frame);
+    }
+
+    /**
+     * Send an encoded frame as a correlated request, with the default timeout. See <tt>Correlator</tt>.
+     */
+    public CompletableFuture<Packet> request(ByteBuffer frame) {
+        return correlator.request(this, frame, correlator.timeoutMillis);
+    }
+
+    public CompletableFuture<Packet> request(ByteBuffer frame, long timeoutMillis) {
+        return correlator.request(this, frame, timeoutMillis);
+    }
+
+    /**
+     * Take one round trip and clock offset sample with a correlated <tt>TIME</tt> enquiry, folded into
+     * <tt>clock</tt> by the time the future completes. With handlers offloaded the sample may land just after.
+     */
+    public CompletableFuture<Packet> measure() {
+        return request(EnquiryType.timeRequest(clock));
+    }
+
+    /**
+     * Block until the connection is writable again, failing if it closes first.
+     */
+    void awaitDrain() throws IOException {
+        drainLock.lock();
+        try {
+            while (!writable && socket.isOpen()) {
+                writability.await(100, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the outgoing queue to drain");
+        } finally {
+            drainLock.unlock();
+        }
+
+        if (!socket.isOpen()) {
+            throw new ClosedChannelException();
+        }
+    }
+
+    /**
+     * Whether the calling thread is the one reading this connection, its selector thread or blocking reader.
+     */
+    boolean onReader() {
+        return (interests != null) ? interests.isOwner() : Thread.currentThread() == reader;
+    }
+
+    /**
+     * Whether reading may continue, neither held back by queued bytes, handlers running behind or
+     * handshake tasks still running.
+     */
+    boolean readable() {
+        return writable && !backlogged && (tls == null || !tls.tasking);
+    }
+
+    /**
+     * False while queued bytes are above the high watermark and have not yet drained to the low one.
+     */
+    public boolean isWritable() {
+        return writable;
+    }
+
+    /**
+     * Frames decoded from this connection.
+     */
+    public long framesIn() {
+        return framesIn;
+    }
 
-        outgoing.offer(data);
-        int previousOps = selectorKey.interestOps();
-        selectorKey = socket.register(selector, previousOps | SelectionKey.OP_WRITE, this);
-        logger.info("Data registered and queued for sending");
+    /**
+     * Frame bytes decoded from this connection, headers included.
+     */
+    public long bytesIn() {
+        return bytesIn;
+    }
+
+    /**
+     * Frames taken off the outgoing queue to be written.
+     */
+    public long framesOut() {
+        return framesOut;
+    }
+
+    /**
+     * Bytes of frames taken off the outgoing queue to be written.
+     */
+    public long bytesOut() {
+        return bytesOut;
+    }
 
-        operationLock.unlock();
+    /**
+     * Bytes queued or partly written but not yet taken by the socket.
+     */
+    public long pendingBytes() {
+        return pendingBytes.get();
     }
 
-    public void forceSend(byte[] data) throws IOException {
-        send(data);
-        write();
+    /**
+     * Ensure write interest is set. On the selector thread the key is updated in place, otherwise the
+     * request is handed to the selector thread, waking it at most once until it catches up.
+     */
+    void requestWrite() {
+        if (interests == null) {
+            LockSupport.unpark(writer);
+        } else if (interests.isOwner()) {
+            updateInterest();
+        } else {
+            interests.request(this);
+        }
+    }
+
+    /**
+     * Set write interest, keeping read interest only while the connection is readable. Selector thread only.
+     */
+    void updateInterest() {
+        if (selectorKey.isValid() && socket.isConnected()) {
+            int ops = selectorKey.interestOps() | SelectionKey.OP_WRITE;
+            selectorKey.interestOps(readable() ? ops | SelectionKey.OP_READ : ops & ~SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * Queue a frame past the watermarks and whatever <tt>backpressure</tt> says, for a last word before
+     * <tt>closeWhenSent</tt>. Safe to call from any thread, the frame goes out in order with the rest.
+     */
+    public void forceSend(ByteBuffer data) throws IOException {
+        if (!socket.isOpen() || closing) {
+            BufferPool.DEFAULT.release(data);
+            throw new ClosedChannelException();
+        }
+        queue(data, null);
+    }
+
+    /**
+     * Close the connection once everything already queued has been written, safe to call from any thread.
+     * Further sends fail and further packets are ignored. The socket is only ever touched by the thread
+     * writing the connection, which closes it once the queue and any TLS close_notify have gone out.
+     */
+    public void closeWhenSent() {
+        closing = true;
+        requestWrite();
     }
 
     public void shutdown() throws IOException {
-        selectorKey.cancel();
+        if (selectorKey != null) {
+            selectorKey.cancel();
+        }
+        if (tls != null && socket.isOpen() && onReader()) {
+            tls.close();
+        }
         socket.close();
+        LockSupport.unpark(writer);
+
+        // wake any sender blocked on the watermark so it sees the close
+        signalWritability();
+        correlator.failAll();
+    }
+
+    /**
+     * Wake every sender blocked in <tt>awaitDrain</tt> to look at the connection again.
+     */
+    void signalWritability() {
+        drainLock.lock();
+        try {
+            writability.signalAll();
+        } finally {
+            drainLock.unlock();
+        }
+    }
+
+    /**
+     * Hand every pooled buffer held by this client back, only once it is shut down and off its selector.
+     */
+    void release() {
+        decoder.release();
+        if (tls != null) {
+            tls.release();
+        }
+
+        for (int i = 0; i < batchCount; i++) {
+            free(writeBatch[i], batchOwners[i]);
+            writeBatch[i] = null;
+            batchOwners[i] = null;
+        }
+        batchCount = 0;
+
+        ByteBuffer queued;
+        while ((queued = outgoing.poll()) != null) {
+            free(queued, (SharedBuffer) outgoing.attachment());
+        }
+    }
+
+    /**
+     * Hand back a frame that has left the outgoing queue, to its shared owner if it has one.
+     */
+    static void free(ByteBuffer frame, SharedBuffer owner) {
+        if (owner != null) {
+            owner.release();
+        } else {
+            BufferPool.DEFAULT.release(frame);
+        }
     }
 }
@@ -0,0 +1,178 @@
+package ca.chopserver;
+
+import java.util.Arrays;
+
+/**
+ * Round trip time and clock offset to one peer, measured the way NTP does from <tt>TIME</tt> enquiries.
+ * The requester stamps T1 as it sends, the peer stamps T2 when its handler takes the request and T3 as it
+ * answers with all three, and the requester stamps T4 when the answer is handled. The round trip is
+ * <tt>(T4 - T1) - (T3 - T2)</tt> and the peer's clock is ahead by <tt>((T2 - T1) + (T3 - T4)) / 2</tt>.
+ * <p>
+ * Stamps are in microseconds from <tt>micros</tt>, which ticks with <tt>System.nanoTime</tt> so it never
+ * steps, but is anchored to the wall clock once at startup so two hosts' stamps can be compared. Time a
+ * peer's handlers spend running behind counts towards its round trip, so a busy peer looks slower.
+ * <p>
+ * Like NTP, an answer only counts if it echoes the T1 of a request this side sent and hasn't yet had
+ * answered, so a peer can't make up samples or answer the same request twice.
+ * <p>
+ * Samples are folded in by whichever thread handles the connection's packets, and read from any thread.
+ */
+public class ClockSync {
+
+    static final long EPOCH_MICROS = System.currentTimeMillis() * 1000;
+    static final long ORIGIN_NANOS = System.nanoTime();
+
+    // the offset is taken from the quickest of the last few exchanges, whose stamps are least disturbed
+    static final int FILTER = 8;
+    // requests remembered while waiting for an answer, the oldest is forgotten first
+    static final int OUTSTANDING = 8;
+    static final long ANSWERED = Long.MIN_VALUE;
+
+    /**
+     * Monotonic microsecond clock, close to microseconds since the epoch.
+     */
+    public static long micros() {
+        return EPOCH_MICROS + (System.nanoTime() - ORIGIN_NANOS) / 1000;
+    }
+
+    volatile long samples;
+    volatile long last;
+    volatile long lowest;
+    volatile double smoothed;
+    volatile double jitter;
+    volatile long offset;
+    volatile long lastOffset;
+
+    long[] delays;
+    long[] offsets;
+    int next;
+
+    long[] origins;
+    int nextOrigin;
+
+    public ClockSync() {
+        samples = 0;
+        lowest = Long.MAX_VALUE;
+        delays = new long[FILTER];
+        offsets = new long[FILTER];
+        next = 0;
+
+        origins = new long[OUTSTANDING];
+        Arrays.fill(origins, ANSWERED);
+        nextOrigin = 0;
+    }
+
+    /**
+     * Remember the T1 of a request about to be sent, so its answer will be accepted.
+     */
+    synchronized void sent(long origin) {
+        origins[nextOrigin] = origin;
+        nextOrigin = (nextOrigin + 1) % OUTSTANDING;
+    }
+
+    /**
+     * Forget an outstanding request's T1 once answered, returns false if there was no such request.
+     */
+    boolean answered(long origin) {
+        for (int i = 0; i < OUTSTANDING; i++) {
+            if (origins[i] == origin && origin != ANSWERED) {
+                origins[i] = ANSWERED;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Fold in one exchange, returns false if it was discarded because it doesn't answer an outstanding
+     * request or its stamps are out of order.
+     */
+    synchronized boolean sample(long sent, long received, long answered, long returned) {
+        if (!answered(sent) || returned < sent || answered < received) {
+            return false;
+        }
+
+        long delay = Math.max(0, (returned - sent) - (answered - received));
+        long theta = ((received - sent) + (answered - returned)) / 2;
+
+        // smoothed like TCP's round trip estimate, jitter like RTP's interarrival jitter
+        if (samples == 0) {
+            smoothed = delay;
+            jitter = 0;
+        } else {
+            smoothed += (delay - smoothed) / 8;
+            jitter += (Math.abs(delay - last) - jitter) / 16;
+        }
+        last = delay;
+        lastOffset = theta;
+        lowest = Math.min(lowest, delay);
+
+        delays[next] = delay;
+        offsets[next] = theta;
+        next = (next + 1) % FILTER;
+
+        int filled = (int) Math.min(samples + 1, FILTER);
+        int best = 0;
+        for (int i = 1; i < filled; i++) {
+            if (delays[i] < delays[best]) {
+                best = i;
+            }
+        }
+        offset = offsets[best];
+        samples++;
+        return true;
+    }
+
+    /**
+     * Whether at least one exchange has completed.
+     */
+    public boolean isMeasured() {
+        return samples > 0;
+    }
+
+    public long samples() {
+        return samples;
+    }
+
+    /**
+     * Smoothed round trip in microseconds, zero until measured.
+     */
+    public long rtt() {
+        return (long) smoothed;
+    }
+
+    /**
+     * Round trip of the latest exchange in microseconds.
+     */
+    public long lastRtt() {
+        return last;
+    }
+
+    /**
+     * Quickest round trip seen in microseconds, zero until measured.
+     */
+    public long minRtt() {
+        return (samples == 0) ? 0 : lowest;
+    }
+
+    /**
+     * Mean deviation between successive round trips in microseconds.
+     */
+    public long jitter() {
+        return (long) jitter;
+    }
+
+    /**
+     * Clock offset of the latest exchange in microseconds.
+     */
+    public long lastOffset() {
+        return lastOffset;
+    }
+
+    /**
+     * Microseconds the peer's clock is ahead of this one, negative if behind.
+     */
+    public long offset() {
+        return offset;
+    }
+}
@@ -0,0 +1,179 @@
+package ca.chopserver;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+/**
+ * Every live connection of a <tt>Server</tt>, shared by its acceptor and reactors. A slot is reserved
+ * before a connection is accepted and given back when it disconnects, so the acceptor can stop taking
+ * connections at <tt>max</tt> and leave the rest waiting in the kernel backlog.
+ */
+public class ConnectionRegistry {
+
+    /**
+     * Most connections held at once, zero for unlimited.
+     */
+    public volatile int max;
+
+    /**
+     * Run whenever a slot is given back, from whichever thread gave it back.
+     */
+    public volatile Runnable onFree;
+
+    Set<Client> clients;
+    AtomicInteger live;
+    AtomicInteger peak;
+    LongAdder accepted;
+
+    public ConnectionRegistry() {
+        this(0);
+    }
+
+    public ConnectionRegistry(int max) {
+        this.max = max;
+        clients = ConcurrentHashMap.newKeySet();
+        live = new AtomicInteger();
+        peak = new AtomicInteger();
+        accepted = new LongAdder();
+    }
+
+    /**
+     * Take a slot for a connection about to be accepted, returns false without taking one if full.
+     */
+    public boolean reserve() {
+        int bound = max;
+        int current;
+        do {
+            current = live.get();
+            if (bound > 0 && current >= bound) {
+                return false;
+            }
+        } while (!live.compareAndSet(current, current + 1));
+
+        int highest = peak.get();
+        while (highest < current + 1 && !peak.compareAndSet(highest, current + 1)) {
+            highest = peak.get();
+        }
+        return true;
+    }
+
+    /**
+     * Give back a slot that was reserved but never registered.
+     */
+    public void unreserve() {
+        live.decrementAndGet();
+        freed();
+    }
+
+    /**
+     * Record a connection registered against a reserved slot.
+     */
+    public void add(Client client) {
+        clients.add(client);
+        accepted.increment();
+    }
+
+    /**
+     * Forget a connection and give back its slot, returns false if it was already removed.
+     */
+    public boolean remove(Client client) {
+        if (!clients.remove(client)) {
+            return false;
+        }
+        live.decrementAndGet();
+        freed();
+        return true;
+    }
+
+    public boolean isFull() {
+        int bound = max;
+        return bound > 0 && live.get() >= bound;
+    }
+
+    /**
+     * Connections holding a slot, including any accepted but not yet registered.
+     */
+    public int live() {
+        return live.get();
+    }
+
+    /**
+     * Most slots held at once since the registry was created.
+     */
+    public int peak() {
+        return peak.get();
+    }
+
+    /**
+     * Connections registered since the registry was created.
+     */
+    public long accepted() {
+        return accepted.sum();
+    }
+
+    /**
+     * Unmodifiable view of the registered connections, safe to iterate while they come and go.
+     */
+    public Set<Client> clients() {
+        return Collections.unmodifiableSet(clients);
+    }
+
+    /**
+     * The connection <tt>filter</tt> accepts with the lowest smoothed round trip, or null if none of them
+     * has been measured yet. See <tt>ClockSync</tt>.
+     */
+    public Client fastest(Predicate<Client> filter) {
+        Client ret = null;
+        long best = Long.MAX_VALUE;
+        for (Client client : clients) {
+            if (!client.clock.isMeasured() || !filter.test(client)) {
+                continue;
+            }
+
+            long rtt = client.clock.rtt();
+            if (rtt < best) {
+                best = rtt;
+                ret = client;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Queue one encoded frame on every registered connection <tt>filter</tt> accepts, returning how many
+     * took it. The frame is encoded once and written from the same pooled buffer to every connection,
+     * which goes back to the pool after the last write; ownership passes to the registry either way.
+     * <p>
+     * A broadcast never waits on one slow peer. Connections above their high watermark are skipped unless
+     * they drop the oldest instead, as are any that are closed; the frame is offered, never waited on.
+     */
+    public int broadcast(ByteBuffer frame, Predicate<Client> filter) {
+        SharedBuffer shared = new SharedBuffer(frame);
+        int ret = 0;
+        try {
+            for (Client client : clients) {
+                if (!filter.test(client)) {
+                    continue;
+                }
+                if (client.offer(shared)) {
+                    ret++;
+                }
+            }
+        } finally {
+            shared.release();
+        }
+        return ret;
+    }
+
+    void freed() {
+        Runnable listener = onFree;
+        if (listener != null) {
+            listener.run();
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package ca.chopserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Matches acknowledgements to the requests they answer, so one connection can carry many requests at
+ * once. A request is sent with a correlation ID from 1 to 255 in its <tt>head</tt> byte, and the peer
+ * echoes the head in the <tt>ACKNOWLEDGE</tt> or <tt>NEG_ACKNOWLEDGE</tt> it replies with. A head of
+ * zero is uncorrelated, as every packet was before, so peers that never set it are unaffected.
+ * <p>
+ * Futures complete on the selector thread, chain anything slow with the async variants.
+ */
+public class Correlator {
+
+    public static final long DEFAULT_TIMEOUT_MILLIS = 30_000;
+
+    static final int IDS = 255;
+
+    /**
+     * A request waiting for its acknowledgement.
+     */
+    static final class Pending {
+        final CompletableFuture<Packet> future;
+        WheelTimer.Timeout timeout;
+
+        Pending() {
+            future = new CompletableFuture<>();
+        }
+    }
+
+    public volatile long timeoutMillis;
+
+    AtomicReferenceArray<Pending> slots;
+    AtomicInteger next;
+
+    public Correlator() {
+        timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+        slots = new AtomicReferenceArray<>(IDS + 1);
+        next = new AtomicInteger();
+    }
+
+    /**
+     * Send an encoded frame as a request on <tt>client</tt>, the connection this correlator belongs to,
+     * safe to call from any thread. The future completes with a copy of the acknowledgement, either kind,
+     * or fails if the request times out, could not be sent, or the connection closes first.
+     */
+    public CompletableFuture<Packet> request(Client client, ByteBuffer frame, long timeoutMillis) {
+        Pending pending = new Pending();
+        int id = claim(pending);
+        if (id == 0) {
+            BufferPool.DEFAULT.release(frame);
+            pending.future.completeExceptionally(new IOException("All " + IDS + " correlation IDs are in flight"));
+            return pending.future;
+        }
+
+        WheelTimer timer = client.timer;
+        if (timer != null && timeoutMillis > 0) {
+            pending.timeout = timer.schedule(timeoutMillis, () -> {
+                if (slots.compareAndSet(id, pending, null)) {
+                    pending.future.completeExceptionally(new TimeoutException("Request " + id + " was not acknowledged within " + timeoutMillis + "ms"));
+                }
+            });
+        }
+
+        frame.put(frame.position(), (byte) id);
+        try {
+            client.send(frame);
+        } catch (IOException ioe) {
+            fail(id, pending, ioe);
+        }
+        return pending.future;
+    }
+
+    /**
+     * Complete the request an acknowledgement answers, returns false if it answers none in flight.
+     */
+    boolean complete(Packet packet) {
+        int id = packet.head & 0xFF;
+        if (id == 0) {
+            return false;
+        }
+
+        Pending pending = slots.getAndSet(id, null);
+        if (pending == null) {
+            return false;
+        }
+
+        if (pending.timeout != null) {
+            pending.timeout.cancel();
+        }
+        pending.future.complete(packet.copy());
+        return true;
+    }
+
+    /**
+     * Fail every request still in flight, once the connection has closed.
+     */
+    void failAll() {
+        for (int id = 1; id <= IDS; id++) {
+            Pending pending = slots.get(id);
+            if (pending != null) {
+                fail(id, pending, new ClosedChannelException());
+            }
+        }
+    }
+
+    /**
+     * Requests sent and not yet acknowledged, failed or timed out.
+     */
+    public int inFlight() {
+        int ret = 0;
+        for (int id = 1; id <= IDS; id++) {
+            if (slots.get(id) != null) {
+                ret++;
+            }
+        }
+        return ret;
+    }
+
+    int claim(Pending pending) {
+        // round robin from the last ID handed out, so a late reply is unlikely to meet a reused ID
+        for (int attempt = 0; attempt < IDS; attempt++) {
+            int id = Math.floorMod(next.getAndIncrement(), IDS) + 1;
+            if (slots.compareAndSet(id, null, pending)) {
+                return id;
+            }
+        }
+        return 0;
+    }
+
+    void fail(int id, Pending pending, Throwable cause) {
+        if (slots.compareAndSet(id, pending, null)) {
+            if (pending.timeout != null) {
+                pending.timeout.cancel();
+            }
+            pending.future.completeExceptionally(cause);
+        }
+    }
+}
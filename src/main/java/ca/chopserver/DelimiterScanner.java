@@ -0,0 +1,213 @@
+package ca.chopserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static ca.chopserver.Packet.*;
+
+/**
+ * Streaming reader for unknown length sections, a <tt>START_TEXT</tt> with both controls zero that runs
+ * until the next <tt>END_TEXT</tt>. Only bytes that arrived since the last scan are searched, and they are
+ * consumed as they go, either streamed to the client's <tt>SectionListener</tt> or collected into a
+ * composite of pooled buffers that is handed to the <tt>START_TEXT</tt> handler once the section ends.
+ */
+public class DelimiterScanner {
+
+    public static final int DEFAULT_MAX = 1024 * 1024;
+
+    /**
+     * Longest section accepted, longer ones are discarded up to their delimiter and refused.
+     */
+    public int max;
+
+    boolean active;
+    boolean overflowed;
+    int size;
+    int partSize;
+    byte[] header;
+    List<ByteBuffer> parts;
+
+    public DelimiterScanner(int partSize) {
+        max = DEFAULT_MAX;
+        active = false;
+        this.partSize = partSize;
+        header = new byte[HEADER_LEN];
+        parts = new ArrayList<>();
+    }
+
+    /**
+     * Start a section from the header at <tt>offset</tt>, the header itself is not consumed.
+     */
+    void begin(Client client, ByteBuffer source, int offset) {
+        active = true;
+        overflowed = false;
+        size = 0;
+
+        for (int i = 0; i < HEADER_LEN; i++) {
+            header[i] = source.get(offset + i);
+        }
+
+        // collected sections carry their header so they can be dispatched like any other frame
+        if (client.sections == null) {
+            append(ByteBuffer.wrap(header));
+        }
+    }
+
+    /**
+     * Consume everything between the position and limit of <tt>source</tt> up to and including the
+     * delimiter. Returns true once the section has ended.
+     */
+    boolean scan(Client client, ByteBuffer source) throws IOException {
+        int from = source.position();
+        int end = -1;
+        for (int i = from; i < source.limit(); i++) {
+            if (source.get(i) == END_TEXT) {
+                end = i;
+                break;
+            }
+        }
+        int to = (end < 0) ? source.limit() : end;
+
+        if (to > from && !overflowed) {
+            if (size + (to - from) > max) {
+                client.logger.info(() -> "Unknown length section exceeded " + max + " bytes, discarding");
+                overflowed = true;
+                clear();
+            } else {
+                ByteBuffer chunk = source.duplicate();
+                chunk.limit(to);
+                if (client.sections != null) {
+                    stream(client, chunk);
+                } else {
+                    append(chunk);
+                }
+                size += to - from;
+            }
+        }
+
+        if (end < 0) {
+            source.position(source.limit());
+            return false;
+        }
+        source.position(end + 1);
+        return true;
+    }
+
+    /**
+     * Hand over the finished section and reset for the next one.
+     */
+    void finish(Client client, Packet packet) throws IOException {
+        active = false;
+
+        byte head = header[PACKET_HEAD];
+        if (overflowed) {
+            perform(client, () -> client.reply(head, StatusType.NEG_ACKNOWLEDGE.frame(Packet.START_TEXT)));
+            return;
+        }
+
+        SectionListener listener = client.sections;
+        if (listener != null) {
+            int length = size;
+            perform(client, () -> {
+                listener.end(client, length);
+                client.reply(head, StatusType.ACKNOWLEDGE.frame(Packet.START_TEXT));
+            });
+            return;
+        }
+
+        // flatten the composite only if it outgrew its first part
+        ByteBuffer whole;
+        if (parts.size() == 1) {
+            whole = parts.get(0);
+            parts.clear();
+        } else {
+            whole = BufferPool.DEFAULT.acquire(HEADER_LEN + size);
+            for (ByteBuffer part : parts) {
+                part.flip();
+                whole.put(part);
+            }
+            clear();
+        }
+
+        try {
+            packet.wrap(whole, 0, size);
+            client.dispatch(packet);
+        } finally {
+            BufferPool.DEFAULT.release(whole);
+        }
+    }
+
+    /**
+     * Pass a chunk to the listener, on the connection's executor when its handlers are offloaded so it
+     * stays in order with the packets around it. The executor gets a pooled copy, the chunk itself is a
+     * view over the receive buffer.
+     */
+    void stream(Client client, ByteBuffer chunk) throws IOException {
+        SectionListener listener = client.sections;
+        if (client.executor == null) {
+            listener.chunk(client, chunk.asReadOnlyBuffer());
+            return;
+        }
+
+        ByteBuffer copy = BufferPool.DEFAULT.acquire(chunk.remaining());
+        copy.put(chunk);
+        copy.flip();
+        client.offload(() -> {
+            try {
+                if (!client.closing) {
+                    listener.chunk(client, copy.asReadOnlyBuffer());
+                }
+            } finally {
+                BufferPool.DEFAULT.release(copy);
+            }
+        });
+    }
+
+    /**
+     * Run the end of a section inline, or on the connection's executor behind whatever went before.
+     */
+    static void perform(Client client, Client.Work work) throws IOException {
+        if (client.executor == null) {
+            work.run();
+        } else {
+            client.offload(() -> {
+                if (!client.closing) {
+                    work.run();
+                }
+            });
+        }
+    }
+
+    /**
+     * Give back any partially collected section.
+     */
+    void release() {
+        clear();
+        active = false;
+    }
+
+    void append(ByteBuffer chunk) {
+        while (chunk.hasRemaining()) {
+            ByteBuffer tail = parts.isEmpty() ? null : parts.get(parts.size() - 1);
+            if (tail == null || !tail.hasRemaining()) {
+                tail = BufferPool.DEFAULT.acquire(partSize);
+                parts.add(tail);
+            }
+
+            int count = Math.min(chunk.remaining(), tail.remaining());
+            ByteBuffer slice = chunk.duplicate();
+            slice.limit(slice.position() + count);
+            tail.put(slice);
+            chunk.position(chunk.position() + count);
+        }
+    }
+
+    void clear() {
+        for (ByteBuffer part : parts) {
+            BufferPool.DEFAULT.release(part);
+        }
+        parts.clear();
+    }
+}
@@ -2,82 +2,129 @@ package ca.chopserver;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.Arrays;
 
 import static ca.chopserver.Packet.*;
 
 public enum EnquiryType {
     NORMAL {
         @Override
-        void parse(Client client) throws IOException {
+        void parse(Client client, Packet packet) throws IOException {
             client.logger.info("Normal enquiry");
 
             // confirm enquiry
-            client.send(new byte[] {NULL, ACKNOWLEDGE, ENQUIRY, NULL});
+            client.reply(packet.head, StatusType.ACKNOWLEDGE.frame(ENQUIRY));
         }
     },
 
     RETURN {
         @Override
-        void parse(Client client) throws IOException {
+        void parse(Client client, Packet packet) throws IOException {
             client.logger.info("Return enquiry");
 
             // return with an enquiry
-            client.send(new byte[] {NULL, ENQUIRY, NULL, NULL});
+            acknowledgeCorrelated(client, packet);
+            client.send(NORMAL.frame());
         }
     },
 
     TIME {
         @Override
-        void parse(Client client) throws IOException {
+        void parse(Client client, Packet packet) throws IOException {
+            long received = ClockSync.micros();
             client.logger.info("Time enquiry");
 
-            // determine how big the data section is, read it into the buffer
-            byte payload = client.inBuffer.get(PACKET_CONTROL2);
-            client.logger.info("Time payload is " + payload + " bytes long");
-            client.inBuffer.clear();
-
-            client.inBuffer.limit(payload);
-            if (client.socket.read(client.inBuffer) != payload) {
-                throw new IOException("Provided data section is not at specified length");
+            // determine how big the data section is, the decoder has already collected it
+            client.logger.info(() -> "Time payload is " + packet.length() + " bytes long");
+            if (packet.length() < Long.BYTES) {
+                throw new IOException("Provided data section is too short to hold a time");
             }
 
-            // rewind position to end of header, pull data as value
-            client.inBuffer.rewind();
-            long value = client.inBuffer.getLong();
-
-            // rewind again, pull data as byte array
-            client.inBuffer.rewind();
-            byte[] data = new byte[payload];
-            client.inBuffer.get(data);
-
-            // report value and bytes
-            client.logger.info("Reported time at client is " + value + " as " + Arrays.toString(data));
+            // an answer to one of this side's requests echoes its send time along with the peer's two stamps
+            int at = packet.body.position();
+            if (packet.length() >= 3 * Long.BYTES) {
+                long sent = packet.body.getLong(at);
+                long peerReceived = packet.body.getLong(at + Long.BYTES);
+                long peerAnswered = packet.body.getLong(at + 2 * Long.BYTES);
+                if (!client.clock.sample(sent, peerReceived, peerAnswered, received)) {
+                    client.logger.info("Time answer matches no outstanding request, ignored");
+                    return;
+                }
+
+                // only a real answer counts as a heartbeat
+                client.missed = 0;
+                client.logger.info(() -> "Round trip " + client.clock.lastRtt() + "us, peer clock ahead by " + client.clock.lastOffset() + "us");
+                if (client.metrics != null) {
+                    client.metrics.clock(client.clock.lastRtt(), client.clock.lastOffset());
+                }
+                return;
+            }
 
-            // confirm time enquiry
-            client.send(new byte[] {NULL, ACKNOWLEDGE, ENQUIRY, NULL});
+            // a request, answered with its send time and this side's receive and answer times
+            long sent = packet.body.getLong(at);
+            ByteBuffer buffer = BufferPool.DEFAULT.acquire(HEADER_LEN + 3 * Long.BYTES);
+            buffer.put(bytes((byte) (3 * Long.BYTES)));
+            buffer.putLong(sent);
+            buffer.putLong(received);
+            buffer.putLong(ClockSync.micros());
+            buffer.flip();
+            client.send(buffer);
+
+            // acknowledged after the answer, so a correlated request completes once its sample is taken
+            acknowledgeCorrelated(client, packet);
         }
     },
 
     RETURN_TIME {
         @Override
-        void parse(Client client) throws IOException {
+        void parse(Client client, Packet packet) throws IOException {
             client.logger.info("Return time enquiry");
 
-            // assemble time header plus payload into buffer, send to client
-            ByteBuffer buffer = ByteBuffer.allocate(HEADER_LEN + Long.BYTES);
-            buffer.put(new byte[] {NULL, ENQUIRY, Packet.TIME, (byte) Long.BYTES});
-            buffer.putLong(System.currentTimeMillis());
-
-            client.send(buffer.array());
+            // measure from this side, the peer answers the time enquiry with its own stamps
+            acknowledgeCorrelated(client, packet);
+            client.send(timeRequest(client.clock));
         }
     };
 
+    static final EnquiryType[] VALUES = values();
+
     public static EnquiryType fromOrdinal(int ordinal) {
-        return values()[ordinal];
+        return VALUES[ordinal];
+    }
+
+    /**
+     * The enquiry for a code, or null if the protocol doesn't define one.
+     */
+    public static EnquiryType lookup(int code) {
+        return (code >= 0 && code < VALUES.length) ? VALUES[code] : null;
     }
 
-    void parse(Client client) throws IOException {
+    /**
+     * Enquiries answered with an enquiry of their own are only acknowledged when the request carries a
+     * correlation ID, so the requester's future completes; uncorrelated peers see no extra frame.
+     */
+    static void acknowledgeCorrelated(Client client, Packet packet) throws IOException {
+        if (packet.head != NULL) {
+            client.reply(packet.head, StatusType.ACKNOWLEDGE.frame(ENQUIRY));
+        }
+    }
+
+    /**
+     * Encode a <tt>TIME</tt> request stamped with its send time, for the peer to answer with its own
+     * receive and answer times. The stamp is remembered by <tt>clock</tt>, which only accepts an answer
+     * that echoes it. See <tt>ClockSync</tt>.
+     */
+    static ByteBuffer timeRequest(ClockSync clock) {
+        long origin = ClockSync.micros();
+        clock.sent(origin);
+
+        ByteBuffer ret = BufferPool.DEFAULT.acquire(HEADER_LEN + Long.BYTES);
+        ret.put(TIME.bytes((byte) Long.BYTES));
+        ret.putLong(origin);
+        ret.flip();
+        return ret;
+    }
+
+    void parse(Client client, Packet packet) throws IOException {
         throw new UnsupportedOperationException("Invalid status value encountered");
     }
 
@@ -89,4 +136,21 @@ public enum EnquiryType {
         return new byte[]{NULL, ENQUIRY, (byte) this.ordinal(), control2};
     }
 
+    ByteBuffer frame() {
+        return frame(NULL);
+    }
+
+    /**
+     * Encode an enquiry header into a pooled buffer, ready to be handed to <tt>Client.send</tt>.
+     */
+    ByteBuffer frame(byte control2) {
+        ByteBuffer ret = BufferPool.DEFAULT.acquire(HEADER_LEN);
+        ret.put(NULL);
+        ret.put(ENQUIRY);
+        ret.put((byte) this.ordinal());
+        ret.put(control2);
+        ret.flip();
+        return ret;
+    }
+
 }
@@ -0,0 +1,176 @@
+package ca.chopserver;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+import static ca.chopserver.Packet.*;
+
+/**
+ * Per-connection incremental decoder. Bytes are accumulated across reads, and frames are only handed
+ * to the <tt>Client</tt> once they are whole, so a short read never drops or corrupts a frame. Frames are
+ * dispatched as a reused <tt>Packet</tt> view over the accumulation buffer.
+ */
+public class FrameDecoder {
+
+    static final int DELIMITED = -1;
+
+    public static final int DEFAULT_MAX_FRAME = 16 * 1024 * 1024;
+
+    /**
+     * Largest body accepted under an extended header, anything longer is treated as a broken stream.
+     */
+    public int maxFrame;
+
+    int window;
+    ByteBuffer buffer;
+    Packet packet;
+    DelimiterScanner scanner;
+
+    public FrameDecoder(int window) {
+        this.window = window;
+        maxFrame = DEFAULT_MAX_FRAME;
+        buffer = BufferPool.DEFAULT.acquire(window);
+        packet = new Packet();
+        scanner = new DelimiterScanner(window);
+    }
+
+    /**
+     * Buffer to read incoming bytes into, always has space remaining.
+     */
+    public ByteBuffer buffer() {
+        if (!buffer.hasRemaining()) {
+            grow(buffer.capacity() * 2);
+        }
+        return buffer;
+    }
+
+    /**
+     * Dispatch every whole frame accumulated so far, keeping any partial frame for the next read.
+     */
+    public void decode(Client client) throws IOException {
+        buffer.flip();
+        int needed = 0;
+
+        try {
+            while (true) {
+                // an unknown length section consumes bytes as they arrive, until its delimiter
+                if (scanner.active) {
+                    if (!scanner.scan(client, buffer)) {
+                        break;
+                    }
+                    scanner.finish(client, packet);
+                    continue;
+                }
+
+                if (buffer.remaining() < HEADER_LEN) {
+                    break;
+                }
+
+                int start = buffer.position();
+
+                // an extended header carries its own 32-bit body length after the usual four bytes
+                if (buffer.get(start + PACKET_STATUS) == START_HEADER) {
+                    if (buffer.remaining() < EXTENDED_LEN) {
+                        break;
+                    }
+
+                    int length = buffer.getInt(start + HEADER_LEN);
+                    if (length < 0 || length > maxFrame) {
+                        throw new ProtocolException("Extended section length " + length + " is outside 0 to " + maxFrame);
+                    }
+
+                    int end = start + EXTENDED_LEN + length;
+                    if (end > buffer.limit()) {
+                        needed = EXTENDED_LEN + length;
+                        break;
+                    }
+
+                    packet.wrapExtended(buffer, start, length);
+
+                    buffer.position(end);
+                    client.dispatch(packet);
+                    continue;
+                }
+
+                int length = bodyLength(buffer, start);
+
+                if (length == DELIMITED) {
+                    scanner.begin(client, buffer, start);
+                    buffer.position(start + HEADER_LEN);
+                    continue;
+                }
+
+                int end = start + HEADER_LEN + length;
+                if (end > buffer.limit()) {
+                    needed = HEADER_LEN + length;
+                    break;
+                }
+
+                // hand over a view of exactly one frame, nothing is copied
+                packet.wrap(buffer, start, length);
+
+                buffer.position(end);
+                client.dispatch(packet);
+            }
+        } finally {
+            buffer.compact();
+        }
+
+        // make sure the rest of a partially received frame will fit, or drop back down once a large one is gone
+        if (needed > buffer.capacity()) {
+            grow(needed);
+        } else if (buffer.position() == 0 && buffer.capacity() > window && needed == 0) {
+            BufferPool.DEFAULT.release(buffer);
+            buffer = BufferPool.DEFAULT.acquire(window);
+        }
+    }
+
+    /**
+     * Length of the body following the header at <tt>offset</tt>, or <tt>DELIMITED</tt> if the body
+     * runs until an <tt>END_TEXT</tt> and is left to the <tt>DelimiterScanner</tt>.
+     */
+    static int bodyLength(ByteBuffer source, int offset) throws IOException {
+        byte status = source.get(offset + PACKET_STATUS);
+        byte control1 = source.get(offset + PACKET_CONTROL1);
+        byte control2 = source.get(offset + PACKET_CONTROL2);
+
+        int length;
+        switch (status) {
+            case START_TEXT:
+                if (control1 == 0 && control2 == 0) {
+                    return DELIMITED;
+                }
+                length = control1 * control2;
+                break;
+            case ENQUIRY:
+                length = control2;
+                break;
+            default:
+                length = 0;
+                break;
+        }
+
+        if (length < 0) {
+            throw new ProtocolException("Declared section length " + length + " is negative");
+        }
+        return length;
+    }
+
+    /**
+     * Give the accumulation buffer back to the pool, the decoder cannot be used afterwards.
+     */
+    public void release() {
+        BufferPool.DEFAULT.release(buffer);
+        buffer = null;
+        scanner.release();
+    }
+
+    void grow(int capacity) {
+        ByteBuffer larger = BufferPool.DEFAULT.acquire(capacity);
+        buffer.flip();
+        larger.put(buffer);
+        BufferPool.DEFAULT.release(buffer);
+        buffer = larger;
+    }
+}
@@ -0,0 +1,113 @@
+package ca.chopserver;
+
+import java.io.IOException;
+
+/**
+ * Table of packet handlers indexed by status byte, with optional sub-tables indexed by the first control
+ * byte for statuses like <tt>ENQUIRY</tt> that are refined by it. Dispatch is two array lookups and never
+ * allocates; a packet nothing is registered for goes to the fallback handler, which by default refuses it.
+ * <p>
+ * Applications register their own handlers for the codes the protocol leaves free, <tt>UN1</tt> to
+ * <tt>UN6</tt>, <tt>START_DATA</tt> and the separators, or replace any of the built in ones. Tables are
+ * read without locking, so register everything before the server or client is started.
+ */
+public class HandlerRegistry {
+
+    /**
+     * The built in handlers, shared by clients that were not given a registry of their own. Never
+     * register into it, take a copy from <tt>defaults()</tt> instead.
+     */
+    public static final HandlerRegistry DEFAULT = defaults();
+
+    static final int CODES = 256;
+
+    PacketHandler[] handlers;
+    PacketHandler[][] controls;
+    PacketHandler fallback;
+
+    /**
+     * Create an empty registry that refuses everything.
+     */
+    public HandlerRegistry() {
+        handlers = new PacketHandler[CODES];
+        controls = new PacketHandler[CODES][];
+        fallback = HandlerRegistry::refuse;
+    }
+
+    /**
+     * Create a registry holding every handler the protocol defines.
+     */
+    public static HandlerRegistry defaults() {
+        HandlerRegistry ret = new HandlerRegistry();
+
+        // only constants with a body of their own actually handle anything
+        for (StatusType type : StatusType.values()) {
+            if (type.getClass() != StatusType.class) {
+                ret.register(type, type::parse);
+            }
+        }
+        for (EnquiryType type : EnquiryType.values()) {
+            if (type.getClass() != EnquiryType.class) {
+                ret.register(StatusType.ENQUIRY, (byte) type.ordinal(), type::parse);
+            }
+        }
+
+        return ret;
+    }
+
+    public void register(StatusType status, PacketHandler handler) {
+        register((byte) status.ordinal(), handler);
+    }
+
+    /**
+     * Handle every packet with <tt>status</tt> not claimed by a control specific handler.
+     */
+    public void register(byte status, PacketHandler handler) {
+        handlers[status & 0xFF] = handler;
+    }
+
+    public void register(StatusType status, byte control, PacketHandler handler) {
+        register((byte) status.ordinal(), control, handler);
+    }
+
+    /**
+     * Handle packets with both <tt>status</tt> and a first control byte of <tt>control</tt>.
+     */
+    public void register(byte status, byte control, PacketHandler handler) {
+        PacketHandler[] table = controls[status & 0xFF];
+        if (table == null) {
+            table = new PacketHandler[CODES];
+            controls[status & 0xFF] = table;
+        }
+        table[control & 0xFF] = handler;
+    }
+
+    /**
+     * Handle every packet nothing else is registered for.
+     */
+    public void fallback(PacketHandler handler) {
+        fallback = handler;
+    }
+
+    void dispatch(Client client, Packet packet) throws IOException {
+        PacketHandler handler = null;
+
+        PacketHandler[] table = controls[packet.status & 0xFF];
+        if (table != null) {
+            handler = table[packet.control1 & 0xFF];
+        }
+        if (handler == null) {
+            handler = handlers[packet.status & 0xFF];
+        }
+        if (handler == null) {
+            handler = fallback;
+        }
+
+        handler.handle(client, packet);
+    }
+
+    static void refuse(Client client, Packet packet) throws IOException {
+        client.logger.info("Unsupported packet type provided, notifying downstream");
+        client.reply(packet.head, StatusType.NEG_ACKNOWLEDGE.frame(packet.status));
+    }
+}
@@ -0,0 +1,71 @@
+package ca.chopserver;
+
+import java.nio.channels.Selector;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * Write interest requested from threads other than the one running a selector. Requests are collected
+ * here and applied in place by the selector thread, waking the selector at most once per batch.
+ */
+public class InterestQueue {
+
+    public Selector selector;
+    public volatile Thread owner;
+
+    /**
+     * Given each requesting client whose channel was closed off the selector thread, to be disconnected.
+     */
+    public Consumer<Client> onClosed;
+
+    Queue<Client> pending;
+    AtomicBoolean wakeupPending;
+
+    public InterestQueue(Selector selector) {
+        this.selector = selector;
+        pending = new ConcurrentLinkedQueue<>();
+        wakeupPending = new AtomicBoolean(false);
+    }
+
+    /**
+     * Claim the calling thread as the one running the selector.
+     */
+    public void own() {
+        owner = Thread.currentThread();
+    }
+
+    public boolean isOwner() {
+        return Thread.currentThread() == owner;
+    }
+
+    /**
+     * Ask for write interest on a client from any thread, queuing it only once until applied.
+     */
+    void request(Client client) {
+        if (client.writeRequested.compareAndSet(false, true)) {
+            pending.offer(client);
+            if (wakeupPending.compareAndSet(false, true)) {
+                selector.wakeup();
+            }
+        }
+    }
+
+    /**
+     * Apply every queued request, must be called from the selector thread.
+     */
+    void apply() {
+        wakeupPending.set(false);
+
+        Client client;
+        while ((client = pending.poll()) != null) {
+            client.writeRequested.set(false);
+            if (client.socket.isOpen()) {
+                client.updateInterest();
+            } else if (onClosed != null) {
+                onClosed.accept(client);
+            }
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package ca.chopserver;
+
+import java.util.Arrays;
+
+/**
+ * Log-linear histogram of non-negative values, laid out like an HdrHistogram with two significant digits:
+ * values below 128 are counted exactly, larger ones in buckets 1/64th of their power of two wide. Recording
+ * is one array increment and the whole range of a long fits in under 4000 counters.
+ * <p>
+ * Not thread safe, give each recording thread its own and <tt>add</tt> them together to report.
+ */
+public final class LatencyHistogram {
+
+    static final int SUB_BITS = 7;
+    static final int SUB_COUNT = 1 << SUB_BITS;
+    static final int HALF_COUNT = SUB_COUNT >> 1;
+    static final int MAX_SHIFT = Long.SIZE - SUB_BITS;
+
+    long[] counts;
+    long total;
+    long min;
+    long max;
+    double sum;
+
+    public LatencyHistogram() {
+        counts = new long[SUB_COUNT + MAX_SHIFT * HALF_COUNT];
+        reset();
+    }
+
+    public void record(long value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Histogram values can't be negative");
+        }
+
+        counts[index(value)]++;
+        total++;
+        sum += value;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    /**
+     * Fold every value recorded in <tt>other</tt> into this histogram.
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        total += other.total;
+        sum += other.sum;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    public void reset() {
+        Arrays.fill(counts, 0);
+        total = 0;
+        sum = 0;
+        min = Long.MAX_VALUE;
+        max = 0;
+    }
+
+    public long count() {
+        return total;
+    }
+
+    public long min() {
+        return (total == 0) ? 0 : min;
+    }
+
+    public long max() {
+        return max;
+    }
+
+    public double mean() {
+        return (total == 0) ? 0 : sum / total;
+    }
+
+    /**
+     * Smallest recorded value at or above <tt>percentile</tt> percent of all values, reported as the top of
+     * its bucket and never above the largest value recorded.
+     */
+    public long percentile(double percentile) {
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(Math.min(percentile, 100.0) / 100.0 * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(highest(i), max);
+            }
+        }
+        return max;
+    }
+
+    static int index(long value) {
+        if (value < SUB_COUNT) {
+            return (int) value;
+        }
+
+        // keep the top seven bits, the shift picks the power of two and the bits the bucket within it
+        int shift = (Long.SIZE - 1 - Long.numberOfLeadingZeros(value)) - (SUB_BITS - 1);
+        return SUB_COUNT + (shift - 1) * HALF_COUNT + (int) ((value >>> shift) - HALF_COUNT);
+    }
+
+    static long lowest(int index) {
+        if (index < SUB_COUNT) {
+            return index;
+        }
+
+        int shift = (index - SUB_COUNT) / HALF_COUNT + 1;
+        long sub = (index - SUB_COUNT) % HALF_COUNT + HALF_COUNT;
+        return sub << shift;
+    }
+
+    static long highest(int index) {
+        if (index < SUB_COUNT) {
+            return index;
+        }
+
+        int shift = (index - SUB_COUNT) / HALF_COUNT + 1;
+        long sub = (index - SUB_COUNT) % HALF_COUNT + HALF_COUNT;
+        return ((sub + 1) << shift) - 1;
+    }
+}
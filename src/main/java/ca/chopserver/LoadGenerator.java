@@ -0,0 +1,366 @@
+package ca.chopserver;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Load test client that drives many connections from a few reactors, each owning a share of the
+ * connections on one selector thread. Every request carries a correlation ID, and its latency is the time
+ * from when it was meant to be sent until its acknowledgement arrives, recorded per reactor into a
+ * <tt>LatencyHistogram</tt>.
+ * <p>
+ * In <tt>OPEN</tt> mode requests go out at a fixed total rate whatever the server does, so latencies
+ * include any time spent queued behind a slow server. In <tt>CLOSED</tt> mode every connection keeps
+ * <tt>depth</tt> requests in flight and sends the next one as soon as one is answered.
+ */
+public final class LoadGenerator {
+
+    public static void main(String[] args) throws Exception {
+        Logger rootLogger = Logger.getLogger("");
+        for (Handler handler : rootLogger.getHandlers()) {
+            rootLogger.removeHandler(handler);
+        }
+        rootLogger.addHandler(new AsyncStreamHandler(System.out, new LogFormatter()));
+        rootLogger.setLevel(Level.WARNING);
+
+        String host = (args.length > 0) ? args[0] : "127.0.0.1";
+        int port = (args.length > 1) ? Integer.parseInt(args[1]) : 50001;
+
+        LoadGenerator generator = new LoadGenerator(new InetSocketAddress(host, port),
+                Integer.getInteger("chopserver.load.selectors", 2));
+        generator.connections = Integer.getInteger("chopserver.load.connections", 1000);
+        generator.mode = Mode.valueOf(System.getProperty("chopserver.load.mode", "closed").toUpperCase());
+        generator.rate = Integer.getInteger("chopserver.load.rate", 10_000);
+        generator.depth = Integer.getInteger("chopserver.load.depth", 1);
+        generator.warmupMillis = TimeUnit.SECONDS.toMillis(Integer.getInteger("chopserver.load.warmup", 5));
+        generator.durationMillis = TimeUnit.SECONDS.toMillis(Integer.getInteger("chopserver.load.duration", 30));
+        generator.mix(System.getProperty("chopserver.load.mix", "enquiry=6,text:64=2,idle=1,wake=1"));
+
+        System.out.println(generator.run());
+    }
+
+    public enum Mode {
+        OPEN,
+        CLOSED
+    }
+
+    /**
+     * Request kinds a mix can name, optionally with a size after a colon for <tt>text</tt>. Each encodes
+     * a request for the connection it will be sent on.
+     */
+    static Function<Client, ByteBuffer> encoder(String kind, int size) {
+        switch (kind) {
+            case "enquiry":
+                return client -> EnquiryType.NORMAL.frame();
+            case "return":
+                return client -> EnquiryType.RETURN.frame();
+            case "returntime":
+                return client -> EnquiryType.RETURN_TIME.frame();
+            case "time":
+                return client -> EnquiryType.timeRequest(client.clock);
+            case "text":
+                byte[] text = new byte[size];
+                for (int i = 0; i < size; i++) {
+                    text[i] = (byte) ('a' + i % 26);
+                }
+                return client -> StatusType.START_TEXT.frame(text);
+            case "idle":
+                return client -> StatusType.IDLE.frame();
+            case "wake":
+                return client -> StatusType.WAKEUP.frame();
+            default:
+                throw new IllegalArgumentException("Unknown request kind " + kind);
+        }
+    }
+
+    /**
+     * A reactor and the generator state only its thread touches.
+     */
+    final class Lane {
+        final Reactor reactor;
+        final List<Client> clients;
+        final LatencyHistogram latencies;
+        final SplittableRandom random;
+
+        boolean recording;
+        boolean stopped;
+        long acknowledged;
+        long refused;
+        long failed;
+
+        // open loop pacing, the next request is due at nextDue
+        long interval;
+        long nextDue;
+        int nextClient;
+
+        Lane(Reactor reactor, long seed) {
+            this.reactor = reactor;
+            clients = new ArrayList<>();
+            latencies = new LatencyHistogram();
+            random = new SplittableRandom(seed);
+        }
+
+        void request(Client client, long intended) {
+            ByteBuffer frame = pick(random).apply(client);
+            client.request(frame).whenComplete((ack, error) -> answered(client, intended, ack));
+        }
+
+        void answered(Client client, long intended, Packet ack) {
+            if (stopped) {
+                return;
+            }
+
+            if (recording) {
+                if (ack == null) {
+                    failed++;
+                } else {
+                    latencies.record(System.nanoTime() - intended);
+                    if (ack.status == Packet.ACKNOWLEDGE) {
+                        acknowledged++;
+                    } else {
+                        refused++;
+                    }
+                }
+            }
+
+            if (mode == Mode.CLOSED && client.socket.isOpen()) {
+                request(client, System.nanoTime());
+            }
+        }
+
+        void pace() {
+            if (stopped) {
+                return;
+            }
+
+            // catch up on everything due, each request timed from when it should have gone out
+            long now = System.nanoTime();
+            while (nextDue <= now) {
+                request(clients.get(nextClient), nextDue);
+                nextClient = (nextClient + 1 == clients.size()) ? 0 : nextClient + 1;
+                nextDue += interval;
+            }
+            reactor.timer.schedule(1, this::pace);
+        }
+
+        void start(int lanes) {
+            if (clients.isEmpty()) {
+                stopped = true;
+                return;
+            }
+
+            if (mode == Mode.OPEN) {
+                interval = Math.max(1, TimeUnit.SECONDS.toNanos(1) * lanes / rate);
+                nextDue = System.nanoTime();
+                pace();
+            } else {
+                long now = System.nanoTime();
+                for (Client client : clients) {
+                    for (int i = 0; i < depth; i++) {
+                        request(client, now);
+                    }
+                }
+            }
+        }
+    }
+
+    public SocketAddress target;
+    public int connections;
+    public Mode mode;
+    public int rate;
+    public int depth;
+    public long warmupMillis;
+    public long durationMillis;
+
+    Reactor[] reactors;
+    ConnectionRegistry registry;
+    List<Function<Client, ByteBuffer>> kinds;
+    int[] weights;
+    int totalWeight;
+
+    /**
+     * Create a generator against <tt>target</tt> spreading its connections over <tt>selectors</tt> reactors.
+     */
+    public LoadGenerator(SocketAddress target, int selectors) throws IOException {
+        if (selectors < 1) {
+            throw new IllegalArgumentException("Load generator requires at least one selector");
+        }
+
+        this.target = target;
+        connections = 1000;
+        mode = Mode.CLOSED;
+        rate = 10_000;
+        depth = 1;
+        warmupMillis = 5_000;
+        durationMillis = 30_000;
+
+        registry = new ConnectionRegistry();
+        reactors = new Reactor[selectors];
+        for (int i = 0; i < selectors; i++) {
+            reactors[i] = new Reactor("load-" + i, 255, registry);
+
+            // millisecond ticks so open loop pacing is only ever a millisecond late
+            reactors[i].timer = new WheelTimer(reactors[i].interests, 1, 1024);
+        }
+        mix("enquiry=1");
+    }
+
+    /**
+     * Set the request mix from a list like <tt>enquiry=6,text:64=2,idle=1,wake=1</tt>, each kind with a
+     * relative weight. Kinds are <tt>enquiry</tt>, <tt>return</tt>, <tt>time</tt>, <tt>returntime</tt>,
+     * <tt>text:SIZE</tt>, <tt>idle</tt> and <tt>wake</tt>.
+     */
+    public void mix(String spec) {
+        List<Function<Client, ByteBuffer>> parsed = new ArrayList<>();
+        List<Integer> cumulative = new ArrayList<>();
+        int sum = 0;
+
+        for (String entry : spec.split(",")) {
+            String[] pair = entry.trim().split("=");
+            String[] kind = pair[0].split(":");
+            int weight = (pair.length > 1) ? Integer.parseInt(pair[1]) : 1;
+            if (weight <= 0) {
+                continue;
+            }
+
+            parsed.add(encoder(kind[0], (kind.length > 1) ? Integer.parseInt(kind[1]) : 16));
+            sum += weight;
+            cumulative.add(sum);
+        }
+        if (parsed.isEmpty()) {
+            throw new IllegalArgumentException("Request mix " + spec + " has nothing with a positive weight");
+        }
+
+        kinds = parsed;
+        weights = cumulative.stream().mapToInt(Integer::intValue).toArray();
+        totalWeight = sum;
+    }
+
+    Function<Client, ByteBuffer> pick(SplittableRandom random) {
+        int roll = random.nextInt(totalWeight);
+        for (int i = 0; i < weights.length; i++) {
+            if (roll < weights[i]) {
+                return kinds.get(i);
+            }
+        }
+        return kinds.get(kinds.size() - 1);
+    }
+
+    /**
+     * Connect, warm up, measure for the configured duration and disconnect, returning the report.
+     */
+    public String run() throws IOException, InterruptedException {
+        if (mode == Mode.OPEN && rate <= 0) {
+            throw new IllegalArgumentException("Open loop load needs a positive rate");
+        }
+        if (mode == Mode.CLOSED && (depth < 1 || depth > Correlator.IDS)) {
+            throw new IllegalArgumentException("Closed loop depth must be between 1 and " + Correlator.IDS);
+        }
+
+        for (int i = 0; i < reactors.length; i++) {
+            Thread worker = new Thread(reactors[i], "load-" + i);
+            worker.setDaemon(true);
+            worker.start();
+        }
+
+        // connect up front and hand each connection to a reactor as if it had been accepted
+        List<SocketChannel> channels = new ArrayList<>(connections);
+        for (int i = 0; i < connections; i++) {
+            SocketChannel channel = SocketChannel.open(target);
+            channel.socket().setTcpNoDelay(true);
+            if (!reactors[i % reactors.length].hand(channel)) {
+                throw new IOException("Connection limit reached after " + i + " connections");
+            }
+            channels.add(channel);
+        }
+        while (registry.accepted() < connections) {
+            Thread.sleep(10);
+        }
+
+        Lane[] lanes = new Lane[reactors.length];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new Lane(reactors[i], i);
+        }
+        for (Client client : registry.clients()) {
+            for (Lane lane : lanes) {
+                if (client.interests == lane.reactor.interests) {
+                    lane.clients.add(client);
+                }
+            }
+        }
+
+        // every lane is only touched from its own reactor's thread, through its timer
+        for (Lane lane : lanes) {
+            lane.reactor.timer.schedule(0, () -> lane.start(lanes.length));
+        }
+        Thread.sleep(warmupMillis);
+        for (Lane lane : lanes) {
+            lane.reactor.timer.schedule(0, () -> lane.recording = true);
+        }
+        Thread.sleep(durationMillis);
+
+        LatencyHistogram latencies = new LatencyHistogram();
+        long[] totals = new long[3];
+        CountDownLatch collected = new CountDownLatch(lanes.length);
+        for (Lane lane : lanes) {
+            lane.reactor.timer.schedule(0, () -> {
+                lane.stopped = true;
+                synchronized (latencies) {
+                    latencies.add(lane.latencies);
+                    totals[0] += lane.acknowledged;
+                    totals[1] += lane.refused;
+                    totals[2] += lane.failed;
+                }
+                // through the reactor, so each slot goes back to the registry
+                for (Client client : lane.clients) {
+                    try {
+                        lane.reactor.disconnect(client);
+                    } catch (IOException ignored) {
+                    }
+                }
+                collected.countDown();
+            });
+        }
+        collected.await();
+
+        for (SocketChannel channel : channels) {
+            channel.close();
+        }
+
+        synchronized (latencies) {
+            return report(latencies, totals[0], totals[1], totals[2]);
+        }
+    }
+
+    String report(LatencyHistogram latencies, long acknowledged, long refused, long failed) {
+        double seconds = durationMillis / 1000.0;
+        StringBuilder ret = new StringBuilder();
+        ret.append(String.format("%d connections on %d selectors, %s loop", connections, reactors.length, mode.name().toLowerCase()));
+        if (mode == Mode.OPEN) {
+            ret.append(String.format(" at %d/s", rate));
+        } else {
+            ret.append(String.format(" with %d in flight each", depth));
+        }
+        ret.append(String.format("%nanswered %.0f/s over %.0fs: %d acknowledged, %d refused, %d failed%n",
+                (acknowledged + refused) / seconds, seconds, acknowledged, refused, failed));
+        ret.append("round trip in microseconds:");
+        String[] labels = {"50", "90", "99", "99.9", "99.99"};
+        for (String label : labels) {
+            ret.append(String.format(" p%s=%.1f", label, latencies.percentile(Double.parseDouble(label)) / 1000.0));
+        }
+        ret.append(String.format(" max=%.1f mean=%.1f", latencies.max() / 1000.0, latencies.mean() / 1000.0));
+        return ret.toString();
+    }
+}
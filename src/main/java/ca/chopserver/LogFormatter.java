@@ -2,49 +2,233 @@ package ca.chopserver;
 
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
 import java.util.logging.Formatter;
 import java.util.logging.LogRecord;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
+/**
+ * Formats records with a <tt>String.format</tt> style pattern over the same seven arguments as
+ * <tt>SimpleFormatter</tt>: date, source, logger, level, message, thrown, thread. The pattern is parsed
+ * once; each record is rendered into a per-thread <tt>StringBuilder</tt>, only the arguments the pattern
+ * uses are computed, and date sections are formatted at most once per second. The thread is the calling
+ * one unless a handler formatting on a thread of its own names the publisher.
+ */
 public class LogFormatter extends Formatter {
 
     // format string for printing the log record
     protected static final String format = "[%1$td %1$tb, %1$tY / %1$tl:%1$tM:%1$tS %1$Tp] [%7$s] {%2$s} [%4$s] %5$s%6$s%n";
     protected static final String forma2 = "[%4$s][%3$s]: %5$s%6$s%n";
-    protected final Date dat = new Date();
+
+    static final Pattern SPECIFIER = Pattern.compile("%(\\d)\\$([tT][a-zA-Z]|s)|%n|%%");
+
+    static final int LITERAL = 0;
+    static final int DATE = 1;
+    static final int SOURCE = 2;
+    static final int LOGGER = 3;
+    static final int LEVEL = 4;
+    static final int MESSAGE = 5;
+    static final int THROWN = 6;
+    static final int THREAD = 7;
+
+    /**
+     * Date text rendered for one whole second.
+     */
+    static final class Stamp {
+        final long second;
+        final String text;
+
+        Stamp(long second, String text) {
+            this.second = second;
+            this.text = text;
+        }
+    }
+
+    /**
+     * One piece of a parsed pattern, either literal text, a run of date conversions, or an argument.
+     */
+    static final class Segment {
+        final int kind;
+        final String text;
+        final boolean perSecond;
+        volatile Stamp stamp;
+
+        Segment(int kind, String text) {
+            this.kind = kind;
+            this.text = text;
+            // sub-second conversions can't be cached
+            perSecond = kind == DATE && !text.matches(".*%1\\$[tT][LNQ].*");
+            stamp = new Stamp(Long.MIN_VALUE, null);
+        }
+    }
+
+    /**
+     * Scratch space owned by one formatting thread.
+     */
+    static final class Scratch {
+        final StringBuilder builder = new StringBuilder(256);
+        final Date date = new Date();
+    }
+
+    protected final String pattern;
+    final Segment[] segments;
+    final boolean usesSource;
+    final ThreadLocal<Scratch> scratch;
+
+    public LogFormatter() {
+        this(forma2);
+    }
+
+    public LogFormatter(String pattern) {
+        this.pattern = pattern;
+        segments = parse(pattern);
+        usesSource = Arrays.stream(segments).anyMatch(segment -> segment.kind == SOURCE);
+        scratch = ThreadLocal.withInitial(Scratch::new);
+    }
 
     @Override
-    public synchronized String format(LogRecord record) {
-        dat.setTime(record.getMillis());
-
-        String source;
-        if (record.getSourceClassName() != null) {
-            source = record.getSourceClassName();
-            if (record.getSourceMethodName() != null) {
-                source += " " + record.getSourceMethodName();
+    public String format(LogRecord record) {
+        return format(record, Thread.currentThread().getName());
+    }
+
+    /**
+     * Format a record published on the thread named <tt>thread</tt>.
+     */
+    public String format(LogRecord record, String thread) {
+        Scratch local = scratch.get();
+        StringBuilder out = local.builder;
+        out.setLength(0);
+
+        for (Segment segment : segments) {
+            switch (segment.kind) {
+                case LITERAL:
+                    out.append(segment.text);
+                    break;
+                case DATE:
+                    out.append(date(segment, local, record.getMillis()));
+                    break;
+                case SOURCE:
+                    if (record.getSourceClassName() != null) {
+                        out.append(record.getSourceClassName());
+                        if (record.getSourceMethodName() != null) {
+                            out.append(' ').append(record.getSourceMethodName());
+                        }
+                    } else {
+                        out.append(record.getLoggerName());
+                    }
+                    break;
+                case LOGGER:
+                    out.append(record.getLoggerName());
+                    break;
+                case LEVEL:
+                    out.append(record.getLevel().getLocalizedName());
+                    break;
+                case MESSAGE:
+                    out.append(formatMessage(record));
+                    break;
+                case THROWN:
+                    if (record.getThrown() != null) {
+                        StringWriter sw = new StringWriter();
+                        PrintWriter pw = new PrintWriter(sw);
+                        pw.println();
+                        record.getThrown().printStackTrace(pw);
+                        pw.close();
+                        out.append(sw);
+                    }
+                    break;
+                case THREAD:
+                    out.append(thread);
+                    break;
             }
-        } else {
-            source = record.getLoggerName();
-        }
-
-        String message = formatMessage(record);
-        String throwable = "";
-        if (record.getThrown() != null) {
-            StringWriter sw = new StringWriter();
-            PrintWriter pw = new PrintWriter(sw);
-            pw.println();
-            record.getThrown().printStackTrace(pw);
-            pw.close();
-            throwable = sw.toString();
-        }
-
-        return String.format(forma2,
-                dat,
-                source,
-                record.getLoggerName(),
-                record.getLevel().getLocalizedName(),
-                message,
-                throwable,
-                Thread.currentThread().getName());
+        }
+
+        return out.toString();
+    }
+
+    String date(Segment segment, Scratch local, long millis) {
+        if (!segment.perSecond) {
+            local.date.setTime(millis);
+            return String.format(segment.text, local.date);
+        }
+
+        // reuse the text for this second if another record already rendered it
+        long second = Math.floorDiv(millis, 1000L);
+        Stamp current = segment.stamp;
+        if (current.second != second) {
+            local.date.setTime(second * 1000L);
+            current = new Stamp(second, String.format(segment.text, local.date));
+            segment.stamp = current;
+        }
+        return current.text;
+    }
+
+    /**
+     * Split a pattern into segments, folding neighbouring date conversions and the literal text between
+     * them into one date segment so it can be cached as a whole.
+     */
+    static Segment[] parse(String pattern) {
+        List<Segment> ret = new ArrayList<>();
+        StringBuilder literal = new StringBuilder();
+        int dateStart = -1;
+        int dateEnd = -1;
+        int last = 0;
+
+        Matcher matcher = SPECIFIER.matcher(pattern);
+        while (matcher.find()) {
+            boolean isDate = "1".equals(matcher.group(1));
+
+            if (isDate) {
+                if (dateStart < 0) {
+                    flush(ret, literal.append(pattern, last, matcher.start()));
+                    dateStart = matcher.start();
+                }
+                dateEnd = matcher.end();
+                last = matcher.end();
+                continue;
+            }
+
+            // anything other than a date conversion closes the current date run
+            if (dateStart >= 0) {
+                ret.add(new Segment(DATE, pattern.substring(dateStart, dateEnd)));
+                dateStart = -1;
+                last = dateEnd;
+            }
+            literal.append(pattern, last, matcher.start());
+            last = matcher.end();
+
+            String token = matcher.group();
+            if (token.equals("%n")) {
+                literal.append(System.lineSeparator());
+            } else if (token.equals("%%")) {
+                literal.append('%');
+            } else {
+                int argument = Integer.parseInt(matcher.group(1));
+                if (argument < SOURCE || argument > THREAD || !matcher.group(2).equals("s")) {
+                    throw new IllegalArgumentException("Log pattern specifier " + token + " is not supported");
+                }
+                flush(ret, literal);
+                ret.add(new Segment(argument, null));
+            }
+        }
+
+        if (dateStart >= 0) {
+            ret.add(new Segment(DATE, pattern.substring(dateStart, dateEnd)));
+            last = dateEnd;
+        }
+        literal.append(pattern, last, pattern.length());
+        flush(ret, literal);
+
+        return ret.toArray(new Segment[0]);
+    }
+
+    static void flush(List<Segment> segments, StringBuilder literal) {
+        if (literal.length() > 0) {
+            segments.add(new Segment(LITERAL, literal.toString()));
+            literal.setLength(0);
+        }
     }
 }
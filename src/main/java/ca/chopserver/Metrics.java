@@ -0,0 +1,428 @@
+package ca.chopserver;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters, gauges and latency histograms for one server and its connections. Counting happens on the
+ * reactor, reader and handler threads as frames go by, into <tt>LongAdder</tt>s and striped histograms so
+ * the threads never contend on a shared line. Gauges such as queue depth are read from the connections
+ * themselves whenever a snapshot is taken, and so are each connection's own counters.
+ * <p>
+ * Readable over JMX once <tt>register</tt>ed, or as text in the Prometheus exposition format from
+ * <tt>snapshot</tt> and, one series per connection, <tt>connections</tt>. Reading never changes anything,
+ * so any number of consoles and scrapers can watch at once.
+ */
+public class Metrics implements MetricsMBean {
+
+    static final int CODES = 256;
+    static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    // the accept rate is taken over this many whole seconds before the current one
+    static final int RATE_SECONDS = 5;
+
+    ConnectionRegistry registry;
+
+    LongAdder[] framesIn;
+    LongAdder[] bytesIn;
+    LongAdder[] framesOut;
+    LongAdder[] bytesOut;
+    LongAdder decodeErrors;
+
+    StripedHistogram loopTime;
+    StripedHistogram keysPerWakeup;
+    AtomicReferenceArray<StripedHistogram> handlerTime;
+    StripedHistogram peerRtt;
+    StripedHistogram peerOffset;
+
+    // accepts per second, each slot packing the second it counts for above the count
+    AtomicLongArray acceptSlots;
+    long origin;
+
+    public Metrics(ConnectionRegistry registry) {
+        this.registry = registry;
+
+        framesIn = adders();
+        bytesIn = adders();
+        framesOut = adders();
+        bytesOut = adders();
+        decodeErrors = new LongAdder();
+
+        loopTime = new StripedHistogram();
+        keysPerWakeup = new StripedHistogram();
+        handlerTime = new AtomicReferenceArray<>(CODES);
+        peerRtt = new StripedHistogram();
+        peerOffset = new StripedHistogram();
+
+        acceptSlots = new AtomicLongArray(RATE_SECONDS + 1);
+        origin = System.nanoTime();
+    }
+
+    static LongAdder[] adders() {
+        LongAdder[] ret = new LongAdder[CODES];
+        for (int i = 0; i < CODES; i++) {
+            ret[i] = new LongAdder();
+        }
+        return ret;
+    }
+
+    /**
+     * Make these metrics readable over JMX as <tt>ca.chopserver:type=Metrics,name=NAME</tt>.
+     */
+    public void register(String name) throws JMException {
+        ObjectName objectName = new ObjectName("ca.chopserver:type=Metrics,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+    }
+
+    /**
+     * Count a connection registered on the acceptor's behalf, into the slot for the current second.
+     */
+    void accepted() {
+        long second = second();
+        int slot = (int) (second % acceptSlots.length());
+        while (true) {
+            long packed = acceptSlots.get(slot);
+            long next = (packed >>> 32 == second) ? packed + 1 : (second << 32) | 1;
+            if (acceptSlots.compareAndSet(slot, packed, next)) {
+                return;
+            }
+        }
+    }
+
+    long second() {
+        return (System.nanoTime() - origin) / 1_000_000_000L;
+    }
+
+    /**
+     * Count a decoded frame, along with the header that carried it.
+     */
+    void frameIn(Packet packet) {
+        int code = packet.status & 0xFF;
+        framesIn[code].increment();
+        bytesIn[code].add(packet.frameLength());
+    }
+
+    /**
+     * Count an encoded frame as it is taken off a connection's outgoing queue to be written.
+     */
+    void frameOut(ByteBuffer frame) {
+        int offset = frame.position();
+        if (frame.remaining() < Packet.HEADER_LEN) {
+            return;
+        }
+
+        // an extended header names the status of the packet it carries in its first control byte
+        byte status = frame.get(offset + Packet.PACKET_STATUS);
+        if (status == Packet.START_HEADER) {
+            status = frame.get(offset + Packet.PACKET_CONTROL1);
+        }
+        int code = status & 0xFF;
+        framesOut[code].increment();
+        bytesOut[code].add(frame.remaining());
+    }
+
+    void decodeError() {
+        decodeErrors.increment();
+    }
+
+    /**
+     * Record one pass of a selector loop and how many keys its wakeup selected.
+     */
+    void loop(long nanos, int keys) {
+        loopTime.record(nanos);
+        keysPerWakeup.record(keys);
+    }
+
+    /**
+     * Record how long the handler for <tt>status</tt> took with one packet.
+     */
+    void handled(byte status, long nanos) {
+        int code = status & 0xFF;
+        StripedHistogram histogram = handlerTime.get(code);
+        if (histogram == null) {
+            handlerTime.compareAndSet(code, null, new StripedHistogram());
+            histogram = handlerTime.get(code);
+        }
+        histogram.record(nanos);
+    }
+
+    /**
+     * Record one round trip and clock offset sample from a time enquiry, both in microseconds.
+     */
+    void clock(long rtt, long offset) {
+        peerRtt.record(rtt);
+        peerOffset.record(Math.abs(offset));
+    }
+
+    @Override
+    public int getLiveConnections() {
+        return registry.live();
+    }
+
+    @Override
+    public long getAcceptedConnections() {
+        return registry.accepted();
+    }
+
+    /**
+     * Connections accepted per second over the last few whole seconds, the same whoever reads it.
+     */
+    @Override
+    public double getAcceptRate() {
+        long now = second();
+        long total = 0;
+        for (int i = 0; i < acceptSlots.length(); i++) {
+            long packed = acceptSlots.get(i);
+            long second = packed >>> 32;
+            if (second < now && second >= now - RATE_SECONDS) {
+                total += packed & 0xFFFFFFFFL;
+            }
+        }
+
+        // fewer whole seconds have passed just after start
+        long seconds = Math.min(RATE_SECONDS, now);
+        return (seconds > 0) ? (double) total / seconds : 0;
+    }
+
+    @Override
+    public long getFramesIn() {
+        return sum(framesIn);
+    }
+
+    @Override
+    public long getFramesOut() {
+        return sum(framesOut);
+    }
+
+    @Override
+    public long getBytesIn() {
+        return sum(bytesIn);
+    }
+
+    @Override
+    public long getBytesOut() {
+        return sum(bytesOut);
+    }
+
+    @Override
+    public long getDecodeErrors() {
+        return decodeErrors.sum();
+    }
+
+    @Override
+    public long getNaksSent() {
+        return framesOut[Packet.NEG_ACKNOWLEDGE].sum();
+    }
+
+    @Override
+    public long getQueuedFrames() {
+        long ret = 0;
+        for (Client client : registry.clients()) {
+            ret += client.outgoing.size();
+        }
+        return ret;
+    }
+
+    @Override
+    public long getQueuedBytes() {
+        long ret = 0;
+        for (Client client : registry.clients()) {
+            ret += client.pendingBytes();
+        }
+        return ret;
+    }
+
+    @Override
+    public long getLoopTimeP99Micros() {
+        return loopTime.snapshot().percentile(99) / 1000;
+    }
+
+    @Override
+    public double getKeysPerWakeup() {
+        return keysPerWakeup.snapshot().mean();
+    }
+
+    @Override
+    public long getHandlerTimeP99Micros() {
+        return handlerTimes().percentile(99) / 1000;
+    }
+
+    @Override
+    public long getPeerRttP50Micros() {
+        return peerRtt.snapshot().percentile(50);
+    }
+
+    @Override
+    public long getPeerOffsetP99Micros() {
+        return peerOffset.snapshot().percentile(99);
+    }
+
+    /**
+     * Handler times for every status merged together.
+     */
+    LatencyHistogram handlerTimes() {
+        LatencyHistogram ret = new LatencyHistogram();
+        for (int i = 0; i < CODES; i++) {
+            StripedHistogram histogram = handlerTime.get(i);
+            if (histogram != null) {
+                ret.add(histogram.snapshot());
+            }
+        }
+        return ret;
+    }
+
+    static long sum(LongAdder[] adders) {
+        long ret = 0;
+        for (LongAdder adder : adders) {
+            ret += adder.sum();
+        }
+        return ret;
+    }
+
+    /**
+     * Every metric as text in the Prometheus exposition format, with times in microseconds.
+     */
+    @Override
+    public String snapshot() {
+        StringBuilder ret = new StringBuilder();
+
+        gauge(ret, "connections_live", "Connections holding a slot");
+        ret.append("chopserver_connections_live ").append(registry.live()).append('\n');
+        counter(ret, "connections_accepted_total", "Connections registered since start");
+        ret.append("chopserver_connections_accepted_total ").append(registry.accepted()).append('\n');
+        gauge(ret, "connections_accept_rate", "Connections accepted per second over the last " + RATE_SECONDS + " whole seconds");
+        ret.append("chopserver_connections_accept_rate ").append(String.format("%.3f", getAcceptRate())).append('\n');
+
+        byStatus(ret, "frames_in_total", "Frames decoded by status", framesIn);
+        byStatus(ret, "bytes_in_total", "Frame bytes decoded by status", bytesIn);
+        byStatus(ret, "frames_out_total", "Frames written by status", framesOut);
+        byStatus(ret, "bytes_out_total", "Frame bytes written by status", bytesOut);
+
+        counter(ret, "decode_errors_total", "Connections dropped for a malformed frame");
+        ret.append("chopserver_decode_errors_total ").append(decodeErrors.sum()).append('\n');
+        counter(ret, "naks_sent_total", "Negative acknowledgements written");
+        ret.append("chopserver_naks_sent_total ").append(getNaksSent()).append('\n');
+
+        // queue depth over every connection, as a total and the deepest single queue
+        long frames = 0;
+        long bytes = 0;
+        long deepest = 0;
+        for (Client client : registry.clients()) {
+            int size = client.outgoing.size();
+            frames += size;
+            bytes += client.pendingBytes();
+            deepest = Math.max(deepest, size);
+        }
+        gauge(ret, "outbound_queued_frames", "Frames waiting in outgoing queues");
+        ret.append("chopserver_outbound_queued_frames ").append(frames).append('\n');
+        gauge(ret, "outbound_queued_bytes", "Bytes queued and not yet taken by sockets");
+        ret.append("chopserver_outbound_queued_bytes ").append(bytes).append('\n');
+        gauge(ret, "outbound_queue_max_frames", "Frames waiting in the deepest outgoing queue");
+        ret.append("chopserver_outbound_queue_max_frames ").append(deepest).append('\n');
+
+        summary(ret, "loop_time_micros", "Selector loop pass time", "", loopTime.snapshot(), 1000);
+        summary(ret, "keys_per_wakeup", "Keys selected per selector wakeup", "", keysPerWakeup.snapshot(), 1);
+
+        summary(ret, "peer_rtt_micros", "Round trip to peers sampled by time enquiries", "", peerRtt.snapshot(), 1);
+        summary(ret, "peer_offset_micros", "Distance of peer clocks from this one sampled by time enquiries", "", peerOffset.snapshot(), 1);
+
+        ret.append("# HELP chopserver_handler_time_micros Packet handler time by status\n");
+        ret.append("# TYPE chopserver_handler_time_micros summary\n");
+        for (int i = 0; i < CODES; i++) {
+            StripedHistogram histogram = handlerTime.get(i);
+            if (histogram != null) {
+                quantiles(ret, "handler_time_micros", "status=\"" + label(i) + "\",", histogram.snapshot(), 1000);
+            }
+        }
+        return ret.toString();
+    }
+
+    /**
+     * Each live connection's own frame and byte counters as Prometheus text, labelled by remote address.
+     * One series per connection, so kept apart from <tt>snapshot</tt> for servers with many.
+     */
+    @Override
+    public String connections() {
+        StringBuilder ret = new StringBuilder();
+        List<Client> clients = new ArrayList<>(registry.clients());
+
+        counter(ret, "connection_frames_in_total", "Frames decoded by connection");
+        for (Client client : clients) {
+            byConnection(ret, "connection_frames_in_total", client, client.framesIn());
+        }
+        counter(ret, "connection_bytes_in_total", "Frame bytes decoded by connection");
+        for (Client client : clients) {
+            byConnection(ret, "connection_bytes_in_total", client, client.bytesIn());
+        }
+        counter(ret, "connection_frames_out_total", "Frames written by connection");
+        for (Client client : clients) {
+            byConnection(ret, "connection_frames_out_total", client, client.framesOut());
+        }
+        counter(ret, "connection_bytes_out_total", "Frame bytes written by connection");
+        for (Client client : clients) {
+            byConnection(ret, "connection_bytes_out_total", client, client.bytesOut());
+        }
+        gauge(ret, "connection_queued_bytes", "Bytes queued and not yet taken by the socket by connection");
+        for (Client client : clients) {
+            byConnection(ret, "connection_queued_bytes", client, client.pendingBytes());
+        }
+        return ret.toString();
+    }
+
+    static void byConnection(StringBuilder out, String name, Client client, long value) {
+        out.append("chopserver_").append(name).append("{remote=\"").append(client.remote).append("\"} ")
+                .append(value).append('\n');
+    }
+
+    static void counter(StringBuilder out, String name, String help) {
+        out.append("# HELP chopserver_").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE chopserver_").append(name).append(" counter\n");
+    }
+
+    static void gauge(StringBuilder out, String name, String help) {
+        out.append("# HELP chopserver_").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE chopserver_").append(name).append(" gauge\n");
+    }
+
+    static void byStatus(StringBuilder out, String name, String help, LongAdder[] adders) {
+        counter(out, name, help);
+        for (int i = 0; i < CODES; i++) {
+            long value = adders[i].sum();
+            if (value != 0) {
+                out.append("chopserver_").append(name).append("{status=\"").append(label(i)).append("\"} ")
+                        .append(value).append('\n');
+            }
+        }
+    }
+
+    static void summary(StringBuilder out, String name, String help, String labels, LatencyHistogram histogram, long scale) {
+        out.append("# HELP chopserver_").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE chopserver_").append(name).append(" summary\n");
+        quantiles(out, name, labels, histogram, scale);
+    }
+
+    static void quantiles(StringBuilder out, String name, String labels, LatencyHistogram histogram, long scale) {
+        for (double quantile : QUANTILES) {
+            out.append("chopserver_").append(name).append('{').append(labels).append("quantile=\"")
+                    .append(quantile).append("\"} ").append(histogram.percentile(quantile * 100) / scale).append('\n');
+        }
+
+        String suffix = labels.isEmpty() ? "" : "{" + labels.substring(0, labels.length() - 1) + "}";
+        out.append("chopserver_").append(name).append("_sum").append(suffix).append(' ')
+                .append(String.format("%.0f", histogram.mean() * histogram.count() / scale)).append('\n');
+        out.append("chopserver_").append(name).append("_count").append(suffix).append(' ')
+                .append(histogram.count()).append('\n');
+    }
+
+    static String label(int code) {
+        StatusType type = StatusType.lookup(code);
+        return (type != null) ? type.name() : Integer.toString(code);
+    }
+}
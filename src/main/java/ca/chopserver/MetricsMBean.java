@@ -0,0 +1,43 @@
+package ca.chopserver;
+
+/**
+ * Management interface of <tt>Metrics</tt>, so the same numbers can be read from any JMX console.
+ */
+public interface MetricsMBean {
+
+    int getLiveConnections();
+
+    long getAcceptedConnections();
+
+    double getAcceptRate();
+
+    long getFramesIn();
+
+    long getFramesOut();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    long getDecodeErrors();
+
+    long getNaksSent();
+
+    long getQueuedFrames();
+
+    long getQueuedBytes();
+
+    long getLoopTimeP99Micros();
+
+    double getKeysPerWakeup();
+
+    long getHandlerTimeP99Micros();
+
+    long getPeerRttP50Micros();
+
+    long getPeerOffsetP99Micros();
+
+    String snapshot();
+
+    String connections();
+}
@@ -0,0 +1,126 @@
+package ca.chopserver;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Lock-free linked queue for many producer threads and a single consumer thread. Producers only ever
+ * swap the tail, the consumer only ever moves the head, so neither side waits on the other.
+ * <p>
+ * An element whose producer is midway through <tt>offer</tt> may be briefly invisible to <tt>poll</tt>,
+ * producers must signal the consumer after offering rather than relying on it to spin.
+ * <p>
+ * An element may carry an attachment, which the consumer reads back through <tt>attachment</tt> right
+ * after polling it.
+ */
+public class MpscQueue<E> {
+
+    static final class Node<E> {
+        E value;
+        Object attachment;
+        volatile Node<E> next;
+
+        Node(E value) {
+            this.value = value;
+        }
+    }
+
+    AtomicReference<Node<E>> tail;
+    Node<E> head;
+    AtomicInteger size;
+    Object polled;
+
+    public volatile int capacity;
+
+    /**
+     * Create an unbounded queue.
+     */
+    public MpscQueue() {
+        this(0);
+    }
+
+    /**
+     * Create a queue holding at most <tt>capacity</tt> elements, zero for unbounded.
+     */
+    public MpscQueue(int capacity) {
+        Node<E> stub = new Node<>(null);
+        head = stub;
+        tail = new AtomicReference<>(stub);
+        size = new AtomicInteger();
+        this.capacity = capacity;
+    }
+
+    /**
+     * Append from any thread, returns false without queuing if the queue is at capacity.
+     */
+    public boolean offer(E value) {
+        return offer(value, null);
+    }
+
+    /**
+     * Append with an attachment, from any thread.
+     */
+    public boolean offer(E value, Object attachment) {
+        if (value == null) {
+            throw new NullPointerException();
+        }
+
+        // reserve a slot before linking so the bound is never overshot
+        int bound = capacity;
+        int current;
+        do {
+            current = size.get();
+            if (bound > 0 && current >= bound) {
+                return false;
+            }
+        } while (!size.compareAndSet(current, current + 1));
+
+        Node<E> node = new Node<>(value);
+        node.attachment = attachment;
+        Node<E> previous = tail.getAndSet(node);
+        previous.next = node;
+        return true;
+    }
+
+    /**
+     * Remove the oldest element, consumer thread only.
+     */
+    public E poll() {
+        Node<E> next = head.next;
+        if (next == null) {
+            polled = null;
+            return null;
+        }
+
+        E ret = next.value;
+        polled = next.attachment;
+        next.value = null;
+        next.attachment = null;
+        head = next;
+        size.decrementAndGet();
+        return ret;
+    }
+
+    /**
+     * Attachment of the element last returned by <tt>poll</tt>, consumer thread only.
+     */
+    public Object attachment() {
+        return polled;
+    }
+
+    /**
+     * Look at the oldest element without removing it, consumer thread only.
+     */
+    public E peek() {
+        Node<E> next = head.next;
+        return (next == null) ? null : next.value;
+    }
+
+    public boolean isEmpty() {
+        return size.get() == 0;
+    }
+
+    public int size() {
+        return size.get();
+    }
+}
@@ -2,7 +2,11 @@ package ca.chopserver;
 
 import java.nio.ByteBuffer;
 
-public abstract class Packet {
+/**
+ * A single protocol frame. Decoded packets are views over the receive buffer of their <tt>Client</tt>,
+ * only valid until the handler returns; copy out of <tt>body</tt> to keep anything longer.
+ */
+public class Packet {
 
     static final Byte HEAD = 0;
     static final Byte STATUS = 0;
@@ -10,6 +14,7 @@ public abstract class Packet {
     static final Byte CONTROL2 = 0;
 
     static final int HEADER_LEN = HEAD.BYTES + STATUS.BYTES + CONTROL1.BYTES + CONTROL2.BYTES;
+    static final int EXTENDED_LEN = HEADER_LEN + Integer.BYTES;
 
     static final byte PACKET_HEAD = 0;
     static final byte PACKET_STATUS = 1;
@@ -33,23 +38,122 @@ public abstract class Packet {
     static final byte TIME = 2;
     static final byte RETURN_TIME = 3;
 
-    byte head;
-    byte status;
-    byte control1;
-    byte control2;
+    public byte head;
+    public byte status;
+    public byte control1;
+    public byte control2;
+
+    /**
+     * Whether a decoded packet arrived under a <tt>START_HEADER</tt> extended header, in which case
+     * <tt>status</tt> and <tt>control1</tt> are taken from it and <tt>control2</tt> is unused.
+     */
+    public boolean extended;
+
+    /**
+     * Read-only view of the body of a decoded packet, between its position and limit.
+     */
+    public ByteBuffer body;
+
+    /**
+     * Body to encode with <tt>out</tt> when building a packet to send.
+     */
     byte[] data;
 
+    ByteBuffer source;
+
+    /**
+     * Point this packet at the frame starting at <tt>offset</tt> in <tt>source</tt>, without copying.
+     * The body view is only rebuilt when the source buffer changes.
+     */
+    Packet wrap(ByteBuffer source, int offset, int length) {
+        head = source.get(offset + PACKET_HEAD);
+        status = source.get(offset + PACKET_STATUS);
+        control1 = source.get(offset + PACKET_CONTROL1);
+        control2 = source.get(offset + PACKET_CONTROL2);
+        extended = false;
+
+        return view(source, offset + HEADER_LEN, length);
+    }
+
+    /**
+     * Point this packet at the extended frame starting at <tt>offset</tt>, whose header names the
+     * status and control byte of the packet it carries.
+     */
+    Packet wrapExtended(ByteBuffer source, int offset, int length) {
+        head = source.get(offset + PACKET_HEAD);
+        status = source.get(offset + PACKET_CONTROL1);
+        control1 = source.get(offset + PACKET_CONTROL2);
+        control2 = NULL;
+        extended = true;
+
+        return view(source, offset + EXTENDED_LEN, length);
+    }
+
+    Packet view(ByteBuffer source, int from, int length) {
+        if (this.source != source) {
+            this.source = source;
+            body = source.asReadOnlyBuffer();
+        }
+
+        body.clear();
+        body.position(from);
+        body.limit(from + length);
+        return this;
+    }
+
+    /**
+     * Number of body bytes in a decoded packet.
+     */
+    public int length() {
+        return body.remaining();
+    }
+
+    /**
+     * Number of bytes a decoded packet took on the wire, header included.
+     */
+    public int frameLength() {
+        return (extended ? EXTENDED_LEN : HEADER_LEN) + body.remaining();
+    }
+
+    /**
+     * Copy the body of a decoded packet out, for handlers that need it after they return.
+     */
+    public byte[] copyBody() {
+        byte[] ret = new byte[body.remaining()];
+        body.duplicate().get(ret);
+        return ret;
+    }
+
+    /**
+     * Detached copy of a decoded packet with a body of its own, still valid after the handler returns.
+     */
+    public Packet copy() {
+        Packet ret = new Packet();
+        ret.head = head;
+        ret.status = status;
+        ret.control1 = control1;
+        ret.control2 = control2;
+        ret.extended = extended;
+        ret.data = copyBody();
+        ret.body = ByteBuffer.wrap(ret.data).asReadOnlyBuffer();
+        return ret;
+    }
+
     public int style() {
-        return ByteBuffer.wrap(new byte[]{head, status, control1, control2}).getInt();
+        return (head & 0xFF) << 24 | (status & 0xFF) << 16 | (control1 & 0xFF) << 8 | (control2 & 0xFF);
     }
 
+    /**
+     * Encode into a pooled buffer, flipped and ready to be handed to <tt>Client.send</tt>.
+     */
     public ByteBuffer out() {
-        ByteBuffer buffer = ByteBuffer.allocate(HEADER_LEN + data.length);
+        ByteBuffer buffer = BufferPool.DEFAULT.acquire(HEADER_LEN + (data != null ? data.length : 0));
         buffer.put(head);
         buffer.put(status);
         buffer.put(control1);
         buffer.put(control2);
         if (data != null) buffer.put(data);
+        buffer.flip();
         return buffer;
     }
 
@@ -0,0 +1,14 @@
+package ca.chopserver;
+
+import java.io.IOException;
+
+/**
+ * Handles one kind of incoming packet, as registered with a <tt>HandlerRegistry</tt>.
+ */
+public interface PacketHandler {
+
+    /**
+     * Handle <tt>packet</tt>, a view over the receive buffer that is only valid until this call returns.
+     */
+    void handle(Client client, Packet packet) throws IOException;
+}
@@ -0,0 +1,285 @@
+package ca.chopserver;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A single selector loop serving a subset of the connections accepted by a <tt>Server</tt>.
+ * Channels are handed over from the accepting thread and registered on this reactor's own thread.
+ */
+public class Reactor implements Runnable {
+
+    public Selector selector;
+    public InterestQueue interests;
+    public WheelTimer timer;
+    public ConnectionRegistry registry;
+    public volatile HandlerRegistry handlers;
+    public Logger logger;
+
+    public int window;
+    public volatile int outgoingCapacity;
+    public volatile int maxSection;
+    public volatile int maxFrame;
+    public volatile long heartbeatMillis;
+    public volatile int maxMissed;
+    public volatile long highWatermark;
+    public volatile long lowWatermark;
+    public volatile Client.Backpressure backpressure;
+    public volatile Executor pool;
+    public volatile int maxBacklog;
+    public volatile Metrics metrics;
+    public volatile SSLContext tls;
+    public volatile Executor tlsTasks;
+
+    Queue<SocketChannel> registrations;
+    AtomicInteger load;
+
+    public Reactor(String name, int window) throws IOException {
+        this(name, window, new ConnectionRegistry());
+    }
+
+    /**
+     * Create a reactor recording its connections in <tt>registry</tt>, which may be shared with others.
+     */
+    public Reactor(String name, int window, ConnectionRegistry registry) throws IOException {
+        selector = Selector.open();
+        interests = new InterestQueue(selector);
+        interests.onClosed = this::reap;
+        timer = new WheelTimer(interests);
+
+        this.registry = registry;
+        handlers = HandlerRegistry.DEFAULT;
+        registrations = new ConcurrentLinkedQueue<>();
+        load = new AtomicInteger();
+        logger = Logger.getLogger(name);
+
+        this.window = window;
+        outgoingCapacity = 0;
+        maxSection = DelimiterScanner.DEFAULT_MAX;
+        maxFrame = FrameDecoder.DEFAULT_MAX_FRAME;
+        heartbeatMillis = 0;
+        maxMissed = 0;
+        highWatermark = Client.DEFAULT_HIGH_WATERMARK;
+        lowWatermark = Client.DEFAULT_LOW_WATERMARK;
+        backpressure = Client.Backpressure.BLOCK;
+        pool = null;
+        maxBacklog = Client.DEFAULT_MAX_BACKLOG;
+        metrics = null;
+        tls = null;
+        tlsTasks = null;
+    }
+
+    // Worker runner
+    @Override
+    public void run() {
+        interests.own();
+        while (true) {
+            try {
+                selector.select(timer.timeout());
+                long start = System.nanoTime();
+                register();
+                interests.apply();
+                timer.advance();
+
+                Set<SelectionKey> selectedKeys = selector.selectedKeys();
+                int keys = selectedKeys.size();
+                Iterator<SelectionKey> keyIterator = selectedKeys.iterator();
+
+                while (keyIterator.hasNext()) {
+                    SelectionKey key = keyIterator.next();
+                    Client subject = (Client) key.attachment();
+                    keyIterator.remove();
+
+                    // closed from another thread since it was selected
+                    if (!key.isValid()) {
+                        continue;
+                    }
+
+                    if (key.isReadable()) {
+                        if (logger.isLoggable(Level.INFO)) {
+                            logger.info("Client " + subject.remote + " data incoming");
+                        }
+
+                        try {
+                            subject.read();
+                        } catch (IOException | CancelledKeyException e) {
+                            logger.info(() -> "Client " + subject.remote + " disconnected");
+                            disconnect(subject);
+                        }
+                    } else if (key.isWritable()) {
+                        if (logger.isLoggable(Level.INFO)) {
+                            logger.info("Client " + subject.remote + " data outgoing");
+                        }
+
+                        try {
+                            subject.write();
+
+                            // asked to close once its queue was written, and now it has been
+                            if (!subject.socket.isOpen()) {
+                                logger.info(() -> "Client " + subject.remote + " closed after its last frame");
+                                disconnect(subject);
+                            }
+                        } catch (IOException | CancelledKeyException e) {
+                            logger.info(() -> "Client " + subject.remote + " failed to take outgoing data");
+                            disconnect(subject);
+                        }
+                    }
+                }
+
+                // time spent handling the wakeup, not waiting for it
+                Metrics recorder = metrics;
+                if (recorder != null) {
+                    recorder.loop(System.nanoTime() - start, keys);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.exit(1);
+            }
+        }
+    }
+
+    /**
+     * Queue an accepted channel to be registered with this reactor, safe to call from any thread. A slot
+     * is reserved for it in the registry first; if none is free the channel is closed and false returned.
+     */
+    public boolean hand(SocketChannel incoming) {
+        if (!registry.reserve()) {
+            logger.info("Connection limit reached, closing handed connection");
+            try {
+                incoming.close();
+            } catch (IOException ignored) {
+            }
+            return false;
+        }
+        handReserved(incoming);
+        return true;
+    }
+
+    /**
+     * Queue a channel whose slot the caller has already reserved, as the acceptor does before accepting.
+     */
+    void handReserved(SocketChannel incoming) {
+        load.incrementAndGet();
+        registrations.offer(incoming);
+        selector.wakeup();
+    }
+
+    /**
+     * Number of connections owned by or queued for this reactor.
+     */
+    public int load() {
+        return load.get();
+    }
+
+    void register() {
+        SocketChannel incoming;
+        while ((incoming = registrations.poll()) != null) {
+            try {
+                Client wrapper = new Client(interests, incoming, window);
+                wrapper.outgoing.capacity = outgoingCapacity;
+                wrapper.decoder.scanner.max = maxSection;
+                wrapper.decoder.maxFrame = maxFrame;
+                wrapper.highWatermark = highWatermark;
+                wrapper.lowWatermark = lowWatermark;
+                wrapper.backpressure = backpressure;
+                wrapper.timer = timer;
+                wrapper.handlers = handlers;
+                wrapper.maxBacklog = maxBacklog;
+                wrapper.metrics = metrics;
+                Executor shared = pool;
+                if (shared != null) {
+                    wrapper.executor = new SerialExecutor(shared);
+                }
+                SSLContext context = tls;
+                if (context != null) {
+                    SSLEngine engine = context.createSSLEngine();
+                    engine.setUseClientMode(false);
+                    wrapper.secure(engine, tlsTasks);
+                }
+                registry.add(wrapper);
+                if (wrapper.metrics != null) {
+                    wrapper.metrics.accepted();
+                }
+
+                long interval = heartbeatMillis;
+                if (interval > 0) {
+                    wrapper.heartbeat = timer.schedule(interval, () -> beat(wrapper, interval));
+                }
+            } catch (IOException ioe) {
+                logger.info("Failed to register handed connection");
+                load.decrementAndGet();
+                registry.unreserve();
+                try {
+                    incoming.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Probe a connection that has been given a heartbeat, dropping it once it has left too many
+     * probes unanswered. Peers that asked to sleep are left alone until they wake. Probes are time
+     * enquiries, so every answer is also a round trip and clock offset sample.
+     */
+    void beat(Client subject, long interval) {
+        try {
+            if (!subject.socket.isOpen() || subject.closing) {
+                return;
+            }
+
+            if (subject.incomingFlag != Packet.IDLE) {
+                if (subject.missed >= maxMissed) {
+                    logger.info(() -> "Client " + subject.remote + " missed " + subject.missed + " heartbeats, disconnecting");
+                    disconnect(subject);
+                    return;
+                }
+                subject.missed++;
+                subject.send(EnquiryType.timeRequest(subject.clock));
+            }
+
+            subject.heartbeat = timer.schedule(interval, () -> beat(subject, interval));
+        } catch (IOException ioe) {
+            logger.info(() -> "Client " + subject.remote + " heartbeat failed");
+            try {
+                disconnect(subject);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Disconnect a client whose handler closed it on an executor thread.
+     */
+    void reap(Client subject) {
+        logger.info(() -> "Client " + subject.remote + " closed by its handler");
+        try {
+            disconnect(subject);
+        } catch (IOException ignored) {
+        }
+    }
+
+    void disconnect(Client subject) throws IOException {
+        if (subject.heartbeat != null) {
+            subject.heartbeat.cancel();
+        }
+        subject.shutdown();
+        if (registry.remove(subject)) {
+            load.decrementAndGet();
+            subject.release();
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package ca.chopserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Receives unknown length text sections piece by piece as they arrive, instead of as one collected body.
+ * With handlers offloaded to the client's <tt>executor</tt> the listener is called there too, in order with
+ * the connection's packets.
+ */
+public interface SectionListener {
+
+    /**
+     * Part of the section body, a read-only view only valid until this call returns.
+     */
+    void chunk(Client client, ByteBuffer chunk) throws IOException;
+
+    /**
+     * The section ended after <tt>length</tt> body bytes, the delimiter is not included.
+     */
+    void end(Client client, int length) throws IOException;
+}
@@ -0,0 +1,419 @@
+package ca.chopserver;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * TLS for one non-blocking connection, an <tt>SSLEngine</tt> sitting between a <tt>Client</tt> and its
+ * socket. Records are unwrapped and wrapped on the connection's selector thread as part of its usual reads
+ * and writes, and the handshake is driven from the same two places. Only the engine's delegated tasks, the
+ * expensive key exchange and certificate work, run elsewhere, on <tt>tasks</tt>; reading is suspended until
+ * they finish and hand the connection back to its selector thread.
+ * <p>
+ * Ciphertext and unwrapped plaintext are staged in pooled buffers that are taken only while they hold
+ * something, so an idle connection holds none. Selector engine only.
+ */
+public class SecureChannel {
+
+    static final ByteBuffer[] NOTHING = {ByteBuffer.allocate(0)};
+
+    /**
+     * Build a context for both ends of a self-signed setup from one PKCS12 store, which provides the key
+     * and is trusted as the only authority.
+     */
+    public static SSLContext context(Path keystore, char[] password) throws IOException, GeneralSecurityException {
+        KeyStore store = KeyStore.getInstance("PKCS12");
+        try (InputStream in = Files.newInputStream(keystore)) {
+            store.load(in, password);
+        }
+
+        KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keys.init(store, password);
+        TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trust.init(store);
+
+        SSLContext ret = SSLContext.getInstance("TLS");
+        ret.init(keys.getKeyManagers(), trust.getTrustManagers(), null);
+        return ret;
+    }
+
+    public final SSLEngine engine;
+
+    Client client;
+    Executor tasks;
+
+    // ciphertext read and not yet unwrapped, kept ready for the next read
+    ByteBuffer netIn;
+    // ciphertext wrapped and not yet taken by the socket, kept ready to write
+    ByteBuffer netOut;
+    // plaintext unwrapped and not yet taken by the decoder, kept ready to read
+    ByteBuffer appIn;
+
+    volatile boolean tasking;
+
+    public SecureChannel(Client client, SSLEngine engine, Executor tasks) {
+        this.client = client;
+        this.engine = engine;
+        this.tasks = tasks;
+        tasking = false;
+    }
+
+    /**
+     * Read and unwrap into <tt>dst</tt>, driving the handshake along the way. Returns the number of plaintext
+     * bytes added, possibly zero, or -1 once the peer has closed and everything before has been handed over.
+     */
+    int read(ByteBuffer dst) throws IOException {
+        int ret = 0;
+        while (!tasking) {
+            ret += transfer(dst);
+            if (!dst.hasRemaining()) {
+                break;
+            }
+
+            SSLEngineResult result = unwrap();
+            if (result == null) {
+                // no whole record buffered, take more from the socket
+                int count = fill();
+                if (count < 0) {
+                    try {
+                        engine.closeInbound();
+                    } catch (SSLException ignored) {
+                        // truncated without a close_notify, the connection is going either way
+                    }
+                    return (ret > 0) ? ret : -1;
+                }
+                if (count == 0) {
+                    break;
+                }
+                continue;
+            }
+
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                return (ret > 0) ? ret : -1;
+            }
+            handshake(result.getHandshakeStatus());
+        }
+        return ret;
+    }
+
+    /**
+     * Wrap and write from <tt>srcs</tt> while the socket keeps up, driving the handshake first if it needs
+     * to send. Returns the number of plaintext bytes consumed, wrapped records still waiting for the
+     * socket are written first next time.
+     */
+    long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        long ret = 0;
+        while (!tasking && flush()) {
+            HandshakeStatus status = engine.getHandshakeStatus();
+            if (status != HandshakeStatus.NOT_HANDSHAKING) {
+                // nothing of ours goes out until the handshake has said all it needs to
+                if (status != HandshakeStatus.NEED_WRAP) {
+                    handshake(status);
+                    break;
+                }
+            } else if (!hasRemaining(srcs, offset, length)) {
+                break;
+            }
+
+            SSLEngineResult result = wrap(srcs, offset, length);
+            ret += result.bytesConsumed();
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                throw new SSLException("TLS engine closed, nothing more can be sent");
+            }
+            handshake(result.getHandshakeStatus());
+        }
+        return ret;
+    }
+
+    /**
+     * Write out what is already wrapped, returns true once none is left.
+     */
+    boolean flush() throws IOException {
+        if (netOut == null) {
+            return true;
+        }
+
+        while (netOut.hasRemaining()) {
+            if (client.socket.write(netOut) == 0) {
+                return false;
+            }
+        }
+        BufferPool.DEFAULT.release(netOut);
+        netOut = null;
+        return true;
+    }
+
+    /**
+     * Whether wrapped bytes are waiting for the socket.
+     */
+    boolean hasPendingOutput() {
+        return netOut != null;
+    }
+
+    /**
+     * Whether ciphertext or plaintext is buffered that a read would make progress on without the socket.
+     */
+    boolean hasBufferedInput() {
+        return appIn != null || netIn != null;
+    }
+
+    /**
+     * Whether writing can't go on until the peer answers or delegated tasks finish, so write interest
+     * would only spin the selector.
+     */
+    boolean stalled() {
+        if (netOut != null) {
+            return false;
+        }
+        if (tasking) {
+            return true;
+        }
+        HandshakeStatus status = engine.getHandshakeStatus();
+        return status == HandshakeStatus.NEED_UNWRAP || status == HandshakeStatus.NEED_UNWRAP_AGAIN;
+    }
+
+    /**
+     * Take the handshake as far as it can go right now.
+     */
+    void handshake(HandshakeStatus status) throws IOException {
+        while (true) {
+            switch (status) {
+                case NEED_TASK:
+                    delegate();
+                    return;
+                case NEED_WRAP:
+                    // records go out whole and in order, so a part written one has to finish first
+                    if (!flush()) {
+                        client.requestWrite();
+                        return;
+                    }
+                    status = wrap(NOTHING, 0, 1).getHandshakeStatus();
+                    if (!flush()) {
+                        client.requestWrite();
+                        return;
+                    }
+                    break;
+                case FINISHED:
+                    client.logger.info(() -> "TLS handshake finished with " + engine.getSession().getProtocol()
+                            + " " + engine.getSession().getCipherSuite());
+
+                    // anything queued while the handshake ran can go out now
+                    client.requestWrite();
+                    return;
+                default:
+                    return;
+            }
+        }
+    }
+
+    /**
+     * Run the engine's delegated tasks on <tt>tasks</tt>, with reading suspended until they finish and
+     * the selector thread picks the connection back up.
+     */
+    void delegate() {
+        tasking = true;
+        client.stopReading();
+
+        Runnable work = () -> {
+            Runnable task;
+            while ((task = engine.getDelegatedTask()) != null) {
+                task.run();
+            }
+            tasking = false;
+            client.requestWrite();
+        };
+        try {
+            tasks.execute(work);
+        } catch (RejectedExecutionException ree) {
+            work.run();
+        }
+    }
+
+    SSLEngineResult wrap(ByteBuffer[] srcs, int offset, int length) throws SSLException {
+        int size = engine.getSession().getPacketBufferSize();
+        while (true) {
+            netOut = BufferPool.DEFAULT.acquire(size);
+            SSLEngineResult result = engine.wrap(srcs, offset, length, netOut);
+            netOut.flip();
+
+            if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                BufferPool.DEFAULT.release(netOut);
+                netOut = null;
+                size = Math.max(engine.getSession().getPacketBufferSize(), size * 2);
+                continue;
+            }
+
+            if (!netOut.hasRemaining()) {
+                BufferPool.DEFAULT.release(netOut);
+                netOut = null;
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Unwrap one buffered record into a fresh <tt>appIn</tt>, or return null if no whole record is buffered.
+     */
+    SSLEngineResult unwrap() throws SSLException {
+        if (netIn == null) {
+            return null;
+        }
+
+        int size = engine.getSession().getApplicationBufferSize();
+        while (true) {
+            appIn = BufferPool.DEFAULT.acquire(size);
+            netIn.flip();
+            SSLEngineResult result;
+            try {
+                result = engine.unwrap(netIn, appIn);
+            } finally {
+                netIn.compact();
+            }
+            appIn.flip();
+
+            if (!appIn.hasRemaining()) {
+                BufferPool.DEFAULT.release(appIn);
+                appIn = null;
+            }
+
+            switch (result.getStatus()) {
+                case BUFFER_OVERFLOW:
+                    size = Math.max(engine.getSession().getApplicationBufferSize(), size * 2);
+                    continue;
+                case BUFFER_UNDERFLOW:
+                    // make sure the rest of a partly received record will fit
+                    int needed = engine.getSession().getPacketBufferSize();
+                    if (netIn.capacity() < needed) {
+                        grow(needed);
+                    }
+                    if (netIn.position() == 0) {
+                        BufferPool.DEFAULT.release(netIn);
+                        netIn = null;
+                    }
+                    return null;
+                default:
+                    if (netIn.position() == 0) {
+                        BufferPool.DEFAULT.release(netIn);
+                        netIn = null;
+                    }
+                    return result;
+            }
+        }
+    }
+
+    int fill() throws IOException {
+        if (netIn == null) {
+            netIn = BufferPool.DEFAULT.acquire(engine.getSession().getPacketBufferSize());
+        }
+
+        int count = client.socket.read(netIn);
+        if (netIn.position() == 0) {
+            BufferPool.DEFAULT.release(netIn);
+            netIn = null;
+        }
+        return count;
+    }
+
+    int transfer(ByteBuffer dst) {
+        if (appIn == null) {
+            return 0;
+        }
+
+        int count = Math.min(appIn.remaining(), dst.remaining());
+        ByteBuffer slice = appIn.duplicate();
+        slice.limit(slice.position() + count);
+        dst.put(slice);
+        appIn.position(appIn.position() + count);
+
+        if (!appIn.hasRemaining()) {
+            BufferPool.DEFAULT.release(appIn);
+            appIn = null;
+        }
+        return count;
+    }
+
+    void grow(int capacity) {
+        ByteBuffer larger = BufferPool.DEFAULT.acquire(capacity);
+        netIn.flip();
+        larger.put(netIn);
+        BufferPool.DEFAULT.release(netIn);
+        netIn = larger;
+    }
+
+    /**
+     * Close the outbound side once everything wrapped so far has been written, returns true once the
+     * close_notify has been taken by the socket too. Called again on later wakeups until it has.
+     */
+    boolean closeOutbound() throws IOException {
+        if (!flush()) {
+            return false;
+        }
+
+        engine.closeOutbound();
+        while (!engine.isOutboundDone()) {
+            if (wrap(NOTHING, 0, 1).bytesProduced() == 0) {
+                break;
+            }
+            if (!flush()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Send a close_notify if the socket takes it straight away, selector thread only.
+     */
+    void close() {
+        engine.closeOutbound();
+        try {
+            if (flush()) {
+                wrap(NOTHING, 0, 1);
+                flush();
+            }
+        } catch (IOException ignored) {
+            // the socket is closing regardless
+        }
+    }
+
+    static boolean hasRemaining(ByteBuffer[] srcs, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            if (srcs[i].hasRemaining()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Hand every staged buffer back, once the connection is shut down and off its selector.
+     */
+    void release() {
+        if (netIn != null) {
+            BufferPool.DEFAULT.release(netIn);
+            netIn = null;
+        }
+        if (netOut != null) {
+            BufferPool.DEFAULT.release(netOut);
+            netOut = null;
+        }
+        if (appIn != null) {
+            BufferPool.DEFAULT.release(appIn);
+            appIn = null;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package ca.chopserver;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs tasks one at a time and in submission order on a pool shared with other serial executors, so
+ * each connection's packets are handled in order without tying a pool thread to the connection. At most
+ * one drain per serial executor is ever queued on the pool.
+ * <p>
+ * If the pool refuses the drain, the submitting thread runs it instead, which also slows it down.
+ */
+public class SerialExecutor implements Executor {
+
+    static final Logger logger = Logger.getLogger(SerialExecutor.class.getName());
+
+    public final Executor pool;
+
+    MpscQueue<Runnable> tasks;
+    AtomicInteger pending;
+
+    public SerialExecutor(Executor pool) {
+        this.pool = pool;
+        tasks = new MpscQueue<>();
+        pending = new AtomicInteger();
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        tasks.offer(task);
+
+        // only the submission that finds nothing pending starts a drain, the running drain picks up the rest
+        if (pending.getAndIncrement() == 0) {
+            try {
+                pool.execute(this::drain);
+            } catch (RejectedExecutionException ree) {
+                drain();
+            }
+        }
+    }
+
+    /**
+     * Tasks submitted and not yet finished, including one running now.
+     */
+    public int pending() {
+        return pending.get();
+    }
+
+    void drain() {
+        do {
+            Runnable task = tasks.poll();
+            try {
+                task.run();
+            } catch (RuntimeException re) {
+                logger.log(Level.WARNING, "Serial task failed", re);
+            }
+        } while (pending.decrementAndGet() > 0);
+    }
+}
@@ -1,27 +1,71 @@
 package ca.chopserver;
 
+import javax.management.JMException;
+import javax.net.ssl.SSLContext;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.nio.ByteBuffer;
 import java.nio.channels.*;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
 import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
 import java.util.logging.*;
 
 public class Server implements Runnable {
 
-    public static void main(String[] args) throws IOException {
+    public static void main(String[] args) throws IOException, JMException, GeneralSecurityException {
         Logger rootLogger = Logger.getLogger("");
         for (Handler handler : rootLogger.getHandlers()) {
             rootLogger.removeHandler(handler);
         }
-        rootLogger.addHandler(new ImmediateStreamHandler(System.out, new LogFormatter()));
+        rootLogger.addHandler(new AsyncStreamHandler(System.out, new LogFormatter()));
+        if (Boolean.getBoolean("chopserver.trace")) {
+            rootLogger.setLevel(Level.FINE);
+        }
 
         InetSocketAddress source = new InetSocketAddress("127.0.0.1", 50001);
-        Server instance = new Server(source, 255);
+
+        // -Dchopserver.engine=virtual runs a virtual thread per connection instead of the selector reactors
+        Runnable instance;
+        Metrics metrics;
+        if ("virtual".equals(System.getProperty("chopserver.engine"))) {
+            VirtualThreadServer virtual = new VirtualThreadServer(source, 255);
+            metrics = virtual.metrics;
+            instance = virtual;
+        } else {
+            int workers = (args.length > 0) ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+            Server server = new Server(source, 255, workers);
+
+            // -Dchopserver.handlers=N runs packet handlers on a pool of N threads instead of the reactors
+            int handlerThreads = Integer.getInteger("chopserver.handlers", 0);
+            if (handlerThreads > 0) {
+                server.offload(Executors.newFixedThreadPool(handlerThreads, runnable -> {
+                    Thread thread = new Thread(runnable);
+                    thread.setDaemon(true);
+                    return thread;
+                }), Client.DEFAULT_MAX_BACKLOG);
+            }
+
+            // -Dchopserver.keystore=server.p12 speaks TLS with the key in that store
+            String keystore = System.getProperty("chopserver.keystore");
+            if (keystore != null) {
+                char[] password = System.getProperty("chopserver.keystore.password", "changeit").toCharArray();
+                server.secure(SecureChannel.context(Path.of(keystore), password));
+            }
+            metrics = server.metrics;
+            instance = server;
+        }
+
+        // readable from jconsole and the like as ca.chopserver:type=Metrics
+        metrics.register(source.toString());
+
         Thread thread = new Thread(instance);
         thread.start();
     }
@@ -30,40 +74,85 @@ public class Server implements Runnable {
     public Selector selector;
     public ServerSocketChannel socket;
     public SelectionKey selectorKey;
-    public List<Client> clientList;
+    public Reactor[] reactors;
+    public ConnectionRegistry registry;
+    public HandlerRegistry handlers;
+    public Metrics metrics;
     public Logger logger;
 
     public int window;
     public int incomingFlag;
     public int outgoingFlag;
 
+    int nextReactor;
+    volatile boolean paused;
+
     /**
-     * Start as serverside host, automatically registers to start accepting and communicating with clients
+     * Start as serverside host with one worker reactor per available core.
      */
     public Server(SocketAddress bind, int window) throws IOException {
+        this(bind, window, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Start as serverside host, automatically registers to start accepting clients and hands each one
+     * to one of <tt>workers</tt> reactors, which communicate with them on their own threads.
+     */
+    public Server(SocketAddress bind, int window, int workers) throws IOException {
+        if (workers < 1) {
+            throw new IllegalArgumentException("Server requires at least one worker reactor");
+        }
+
         socket = ServerSocketChannel.open();
         socket.configureBlocking(false);
         selector = Selector.open();
 
         operationLock = new ReentrantLock();
-        clientList = new LinkedList<>();
         logger = Logger.getLogger(bind.toString());
 
         this.window = window;
         incomingFlag = 0;
         outgoingFlag = 0;
 
+        handlers = HandlerRegistry.defaults();
+        registry = new ConnectionRegistry();
+        registry.onFree = this::resumeAccept;
+        metrics = new Metrics(registry);
+        paused = false;
+
+        reactors = new Reactor[workers];
+        for (int i = 0; i < workers; i++) {
+            reactors[i] = new Reactor(bind + "-worker-" + i, window, registry);
+            reactors[i].handlers = handlers;
+            reactors[i].metrics = metrics;
+        }
+        nextReactor = 0;
+
         socket.bind(bind);
         selectorKey = socket.register(selector, SelectionKey.OP_ACCEPT);
-        logger.info("Bound and accepting connections on " + bind.toString());
+        logger.info("Bound and accepting connections on " + bind.toString() + " with " + workers + " workers");
     }
 
-    // Serverside runner
+    // Serverside acceptor runner, starts the worker reactors before accepting
     @Override
     public void run() {
+        for (int i = 0; i < reactors.length; i++) {
+            Thread worker = new Thread(reactors[i], Thread.currentThread().getName() + "-worker-" + i);
+            worker.setDaemon(true);
+            worker.start();
+        }
+
         while (true) {
             try {
                 selector.select();
+
+                // a slot has come free since accepting was paused, take from the backlog again
+                if (paused && !registry.isFull()) {
+                    paused = false;
+                    selectorKey.interestOps(SelectionKey.OP_ACCEPT);
+                    logger.info("Connection slot freed, accepting again");
+                }
+
                 Set<SelectionKey> selectedKeys = selector.selectedKeys();
                 Iterator<SelectionKey> keyIterator = selectedKeys.iterator();
 
@@ -75,23 +164,6 @@ public class Server implements Runnable {
                         accept();
                     }
 
-                    if (key.isReadable()) {
-                        Client subject = (Client) key.attachment();
-                        logger.info("Client " + subject.socket.getRemoteAddress() + " data incoming");
-
-                        try {
-                            subject.read();
-                        } catch (IOException ioe) {
-                            logger.info("Client " + subject.socket.getRemoteAddress() + " disconnected");
-                            subject.shutdown();
-                            clientList.remove(subject);
-                        }
-                    } else if (key.isWritable()) {
-                        Client subject = (Client) key.attachment();
-                        logger.info("Client " + subject.socket.getRemoteAddress() + " data outgoing");
-                        subject.write();
-                    }
-
                     keyIterator.remove();
                 }
             } catch (IOException e) {
@@ -104,16 +176,186 @@ public class Server implements Runnable {
     void accept() throws IOException {
         operationLock.lock();
 
-        SocketChannel incoming = socket.accept();
-        if (incoming != null) {
-            logger.info("New client " + incoming.getRemoteAddress());
+        try {
+            // at the limit, stop selecting for accepts and let the kernel backlog hold the excess
+            if (!registry.reserve()) {
+                paused = true;
+                selectorKey.interestOps(0);
+                logger.info(() -> "Connection limit of " + registry.max + " reached, pausing accepts");
 
-            Client wrapper = new Client(selector, incoming, window);
-            clientList.add(wrapper);
-        } else {
-            logger.info("No connection available");
+                // a slot may have freed between the check and the pause
+                if (!registry.isFull()) {
+                    selector.wakeup();
+                }
+                return;
+            }
+
+            SocketChannel incoming = socket.accept();
+            if (incoming != null) {
+                if (logger.isLoggable(Level.INFO)) {
+                    logger.info("New client " + incoming.getRemoteAddress());
+                }
+                pick().handReserved(incoming);
+            } else {
+                registry.unreserve();
+                logger.info("No connection available");
+            }
+        } finally {
+            operationLock.unlock();
+        }
+    }
+
+    /**
+     * Wake the acceptor if it paused at the connection limit, called whenever a slot is given back.
+     */
+    void resumeAccept() {
+        if (paused) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Hold at most <tt>connections</tt> connections at once, zero for unlimited. Beyond that, connections
+     * wait in the kernel backlog until one closes.
+     */
+    public void limitConnections(int connections) {
+        registry.max = connections;
+        resumeAccept();
+    }
+
+    /**
+     * Bound every connection's outgoing queue to <tt>frames</tt> queued frames, zero for unbounded.
+     * Applies to connections accepted from now on.
+     */
+    public void limitOutgoing(int frames) {
+        for (Reactor reactor : reactors) {
+            reactor.outgoingCapacity = frames;
         }
+    }
 
-        operationLock.unlock();
+    /**
+     * Refuse unknown length text sections longer than <tt>bytes</tt>.
+     * Applies to connections accepted from now on.
+     */
+    public void limitSection(int bytes) {
+        for (Reactor reactor : reactors) {
+            reactor.maxSection = bytes;
+        }
     }
+
+    /**
+     * Drop connections that declare an extended frame body longer than <tt>bytes</tt>.
+     * Applies to connections accepted from now on.
+     */
+    public void limitFrame(int bytes) {
+        for (Reactor reactor : reactors) {
+            reactor.maxFrame = bytes;
+        }
+    }
+
+    /**
+     * Stop reading from a connection once <tt>high</tt> bytes are queued for it, until they drain to
+     * <tt>low</tt>, with <tt>policy</tt> deciding what happens to sends in between. Zero disables the
+     * watermarks; applies to connections accepted from now on.
+     */
+    public void limitPending(long high, long low, Client.Backpressure policy) {
+        if (high > 0 && (low < 0 || low >= high)) {
+            throw new IllegalArgumentException("Low watermark must sit below the high watermark");
+        }
+
+        for (Reactor reactor : reactors) {
+            reactor.highWatermark = high;
+            reactor.lowWatermark = low;
+            reactor.backpressure = policy;
+        }
+    }
+
+    /**
+     * Send a heartbeat enquiry to each connection every <tt>intervalMillis</tt>, disconnecting any that
+     * leave <tt>missed</tt> in a row unanswered. Connections whose peer has gone idle are not probed.
+     * Each heartbeat also measures the connection's round trip and clock offset, see <tt>Client.clock</tt>.
+     * Zero disables heartbeats; applies to connections accepted from now on.
+     */
+    public void heartbeat(long intervalMillis, int missed) {
+        if (intervalMillis > 0 && missed < 1) {
+            throw new IllegalArgumentException("At least one heartbeat must be allowed to go unanswered");
+        }
+        for (Reactor reactor : reactors) {
+            reactor.maxMissed = missed;
+            reactor.heartbeatMillis = intervalMillis;
+        }
+    }
+
+    /**
+     * Run packet handlers on <tt>pool</tt> rather than on the reactor threads, still in arrival order for each
+     * connection. Reading from a connection is suspended while <tt>backlog</tt> of its packets wait to be
+     * handled, zero for unbounded, until half have been. Replies sent from the pool are written by the
+     * connection's reactor. A null pool puts handlers back on the reactors; applies to connections accepted
+     * from now on.
+     */
+    public void offload(Executor pool, int backlog) {
+        if (backlog < 0) {
+            throw new IllegalArgumentException("Handler backlog can't be negative");
+        }
+        for (Reactor reactor : reactors) {
+            reactor.maxBacklog = backlog;
+            reactor.pool = pool;
+        }
+    }
+
+    /**
+     * Speak TLS with every connection accepted from now on, running delegated handshake tasks on the
+     * common pool. The server's session cache in <tt>context</tt> lets returning clients resume.
+     */
+    public void secure(SSLContext context) {
+        secure(context, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Speak TLS with every connection accepted from now on, running delegated handshake tasks on
+     * <tt>tasks</tt> rather than the reactor threads. A null context goes back to plaintext.
+     */
+    public void secure(SSLContext context, Executor tasks) {
+        for (Reactor reactor : reactors) {
+            reactor.tlsTasks = tasks;
+            reactor.tls = context;
+        }
+    }
+
+    /**
+     * Send one encoded frame to every connection, see <tt>ConnectionRegistry.broadcast</tt>.
+     */
+    public int broadcast(ByteBuffer frame) {
+        return registry.broadcast(frame, client -> true);
+    }
+
+    /**
+     * Send one encoded frame to every connection in <tt>group</tt>.
+     */
+    public int broadcast(String group, ByteBuffer frame) {
+        return registry.broadcast(frame, client -> client.groups.contains(group));
+    }
+
+    /**
+     * Send one encoded frame to every connection <tt>filter</tt> accepts.
+     */
+    public int broadcast(ByteBuffer frame, Predicate<Client> filter) {
+        return registry.broadcast(frame, filter);
+    }
+
+    /**
+     * Choose the least loaded reactor, starting the search after the last pick so ties are spread round-robin.
+     */
+    Reactor pick() {
+        Reactor chosen = reactors[nextReactor];
+        for (int i = 1; i < reactors.length; i++) {
+            Reactor candidate = reactors[(nextReactor + i) % reactors.length];
+            if (candidate.load() < chosen.load()) {
+                chosen = candidate;
+            }
+        }
+        nextReactor = (nextReactor + 1) % reactors.length;
+        return chosen;
+    }
+
 }
@@ -0,0 +1,61 @@
+package ca.chopserver;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An encoded frame queued on many connections at once. Each connection writes its own read-only view
+ * of the one pooled buffer and gives back its reference once the frame is written or dropped; the
+ * buffer returns to the pool with the last reference.
+ * <p>
+ * The creator holds the first reference and must release it after handing the frame out.
+ */
+public class SharedBuffer {
+
+    final ByteBuffer frame;
+    final AtomicInteger refs;
+
+    /**
+     * Share a pooled frame, flipped and ready to write. Ownership of the buffer passes to this object.
+     */
+    public SharedBuffer(ByteBuffer frame) {
+        this.frame = frame;
+        refs = new AtomicInteger(1);
+    }
+
+    /**
+     * Take another reference, only while already holding one.
+     */
+    public SharedBuffer retain() {
+        if (refs.getAndIncrement() <= 0) {
+            throw new IllegalStateException("Shared frame already released");
+        }
+        return this;
+    }
+
+    /**
+     * Give back a reference, handing the buffer back to the pool if it was the last.
+     */
+    public void release() {
+        int left = refs.decrementAndGet();
+        if (left == 0) {
+            BufferPool.DEFAULT.release(frame);
+        } else if (left < 0) {
+            throw new IllegalStateException("Shared frame released more often than retained");
+        }
+    }
+
+    /**
+     * References still held.
+     */
+    public int refs() {
+        return refs.get();
+    }
+
+    /**
+     * Read-only view with a position of its own, so each connection can write it at its own pace.
+     */
+    ByteBuffer view() {
+        return frame.asReadOnlyBuffer();
+    }
+}
@@ -1,9 +1,8 @@
 package ca.chopserver;
 
 import java.io.IOException;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.util.logging.Level;
 
 import static ca.chopserver.Packet.*;
 import static ca.chopserver.Packet.NULL;
@@ -16,116 +15,65 @@ public enum StatusType {
 
     START_TEXT {
         @Override
-        void parse(Client client) throws IOException {
+        void parse(Client client, Packet packet) throws IOException {
             client.logger.info("Text section incoming");
 
-            byte segmentCount = client.inBuffer.get(PACKET_CONTROL1);
-            byte segmentWidth = client.inBuffer.get(PACKET_CONTROL2);
-            byte[] ret;
-
-            if (segmentCount == 0 && segmentWidth == 0) {
-                // unknown length read
-                client.logger.info("Unknown length section declared");
-
-                // assemble a pipe to send data into
-                PipedInputStream inStream = new PipedInputStream();
-                PipedOutputStream outStream = new PipedOutputStream(inStream);
-                outStream.write(client.inBuffer.array(), 0, HEADER_LEN);
-
-                // keep reading until stop signal is found
-                boolean found = false;
-                int total = HEADER_LEN;
-                client.inBuffer.limit(client.window);
-                while (!found) {
-                    client.inBuffer.clear();
-                    int read = client.socket.read(client.inBuffer);
-
-                    for (byte b: client.inBuffer.array()) {
-                        if (b == Packet.END_TEXT) {
-                            found = true;
-                            break;
-                        }
-                    }
-
-                    total += read;
-                    outStream.write(client.inBuffer.array(), 0, read);
-                }
-
-                // read piped data into solid buffer
-                ret = new byte[total];
-                if (inStream.read(ret) != total) {
-                    throw new IOException();
-                }
+            int length = packet.length();
+            if (packet.extended) {
+                client.logger.info(() -> "Extended length section of " + length + " bytes");
+            } else if (packet.control1 == 0 && packet.control2 == 0) {
+                client.logger.info(() -> "Unknown length section ended after " + length + " bytes");
             } else {
-                // regular known-length read
-                int remaining = segmentCount * segmentWidth;
-                int bufferCount = remaining / client.window + (remaining % client.window != 0 ? 1 : 0);
-                client.logger.info("Known length section declared in " + segmentCount + " segments " + segmentWidth +  " wide, totalling " + remaining + " long, fits in " + bufferCount + " buffers");
-
-                // make return array, and load header
-                ret = new byte[HEADER_LEN + remaining];
-                client.inBuffer.rewind();
-                client.inBuffer.get(ret, 0, HEADER_LEN);
-
-                int total = HEADER_LEN;
-                for (int i = 0; i < bufferCount; i++) {
-                    // calculate how much should be put in the n-th buffer, prepare it to hold exactly that number
-                    int expected = (client.window > remaining) ? remaining : client.window;
-                    client.inBuffer.clear();
-                    client.inBuffer.limit(expected);
-
-                    // read incoming data into buffer, check to make sure it's the right amount
-                    int read = client.socket.read(client.inBuffer);
-                    if (read != expected) {
-                        throw new IOException();
-                    }
-
-                    // place new data in return buffer
-                    client.inBuffer.rewind();
-                    client.inBuffer.get(ret, total, read);
-
-                    // update trackers
-                    total += read;
-                    remaining -= read;
-                }
+                client.logger.info(() -> "Known length section declared in " + packet.control1 + " segments " + packet.control2 +  " wide, totalling " + length + " long");
             }
 
-            // report and offload received text
-            client.logger.info("Downstream: \"" + new String(ret).substring(HEADER_LEN, ret.length) + "\"");
-            client.incoming.offer(ret);
+            // the only copy, kept for the application to collect
+            byte[] text = packet.copyBody();
+
+            // offload received text, echoing it only in the wire trace
+            if (client.logger.isLoggable(Level.FINE)) {
+                client.logger.fine("Downstream: \"" + new String(text) + "\"");
+            }
+            client.incoming.offer(text);
 
             // confirm text section
-            client.send(new byte[] {Packet.NULL, Packet.ACKNOWLEDGE, Packet.START_TEXT, Packet.NULL});
+            client.reply(packet.head, ACKNOWLEDGE.frame(Packet.START_TEXT));
         }
 
         @Override
         byte[] bytes(byte[] data) {
+            // anything past a single segment goes under an extended header
+            if (data.length > Byte.MAX_VALUE) {
+                return extendedBytes(Packet.NULL, data);
+            }
+
             // create container for text data
             byte[] ret = new byte[HEADER_LEN + data.length];
             ret[0] = Packet.NULL;
             ret[1] = Packet.START_TEXT;
+            ret[2] = 1;
+            ret[3] = (byte) data.length;
+
+            // copy text ahead of header
+            System.arraycopy(data, 0, ret, HEADER_LEN, data.length);
+
+            return ret;
+        }
 
-            // calculate control signals to hold text
+        @Override
+        ByteBuffer frame(byte[] data) {
             if (data.length > Byte.MAX_VALUE) {
-                for (int i = 1; i < Math.sqrt(data.length); i++) {
-                    if (data.length % i == 0) {
-                        if (i <= Byte.MAX_VALUE && data.length / i <= Byte.MAX_VALUE) {
-                            ret[2] = (byte) i;
-                            ret[3] = (byte) (data.length / i);
-                            break;
-                        }
-                    }
-                }
-                if (ret[2] < 0) {
-                    throw new IllegalArgumentException("Data section length cannot be held within header flags");
-                }
-            } else {
-                ret[2] = 1;
-                ret[3] = (byte) data.length;
+                return extended(Packet.NULL, data);
             }
 
-            // copy text ahead of header
-            System.arraycopy(data, 0, ret, HEADER_LEN, data.length);
+            // header and text straight into a pooled buffer
+            ByteBuffer ret = BufferPool.DEFAULT.acquire(HEADER_LEN + data.length);
+            ret.put(Packet.NULL);
+            ret.put(Packet.START_TEXT);
+            ret.put((byte) 1);
+            ret.put((byte) data.length);
+            ret.put(data);
+            ret.flip();
 
             return ret;
         }
@@ -137,9 +85,13 @@ public enum StatusType {
 
     ENQUIRY {
         @Override
-        void parse(Client client) throws IOException {
-            EnquiryType object = EnquiryType.fromOrdinal(client.inBuffer.get(PACKET_CONTROL1));
-            object.parse(client);
+        void parse(Client client, Packet packet) throws IOException {
+            EnquiryType object = EnquiryType.lookup(packet.control1);
+            if (object == null) {
+                client.reply(packet.head, NEG_ACKNOWLEDGE.frame(Packet.ENQUIRY));
+                return;
+            }
+            object.parse(client, packet);
         }
 
         byte[] bytes(EnquiryType type) { // TODO: how would you even call this
@@ -149,10 +101,17 @@ public enum StatusType {
 
     ACKNOWLEDGE {
         @Override
-        void parse(Client client) throws IOException {
-            StatusType confirm = fromOrdinal(client.inBuffer.get(PACKET_CONTROL1));
-            client.logger.info(confirm.name() + " acknowledge received");
+        void parse(Client client, Packet packet) throws IOException {
+            StatusType confirm = lookup(packet.control1);
+            if (confirm == null) {
+                client.logger.info("Acknowledge of undefined status received");
+                return;
+            }
+            client.logger.info(() -> confirm.name() + " acknowledge received");
             switch (confirm) {
+                case ENQUIRY:
+                    client.missed = 0;
+                    break;
                 case WAKEUP:
                     client.logger.info("Downstream is now asleep");
                     client.incomingFlag = NULL.ordinal();
@@ -176,14 +135,14 @@ public enum StatusType {
 
     WAKEUP {
         @Override
-        void parse(Client client) throws IOException {
+        void parse(Client client, Packet packet) throws IOException {
             client.logger.info("Wakeup requested");
             if (client.incomingFlag == Packet.IDLE) {
                 client.incomingFlag = Packet.NULL;
-                client.send(StatusType.ACKNOWLEDGE.bytes(Packet.WAKEUP));
+                client.reply(packet.head, StatusType.ACKNOWLEDGE.frame(Packet.WAKEUP));
                 client.logger.info("Upstream now awake");
             } else {
-                client.send(StatusType.NEG_ACKNOWLEDGE.bytes(Packet.WAKEUP));
+                client.reply(packet.head, StatusType.NEG_ACKNOWLEDGE.frame(Packet.WAKEUP));
                 client.logger.info("Wakeup refused");
             }
         }
@@ -217,22 +176,26 @@ public enum StatusType {
 
     NEG_ACKNOWLEDGE {
         @Override
-        void parse(Client client) throws IOException {
-            StatusType confirm = fromOrdinal(client.inBuffer.get(PACKET_CONTROL1));
-            client.logger.info(confirm.name() + " refused");
+        void parse(Client client, Packet packet) throws IOException {
+            StatusType confirm = lookup(packet.control1);
+            if (confirm == null) {
+                client.logger.info("Refusal of undefined status received");
+                return;
+            }
+            client.logger.info(() -> confirm.name() + " refused");
         }
     },
 
     IDLE {
         @Override
-        void parse(Client client) throws IOException {
+        void parse(Client client, Packet packet) throws IOException {
             client.logger.info("Sleep requested");
             if (client.incomingFlag == Packet.NULL) {
                 client.incomingFlag = Packet.IDLE;
-                client.send(StatusType.ACKNOWLEDGE.bytes(Packet.IDLE));
+                client.reply(packet.head, StatusType.ACKNOWLEDGE.frame(Packet.IDLE));
                 client.logger.info("Upstream now asleep");
             } else {
-                client.send(StatusType.NEG_ACKNOWLEDGE.bytes(Packet.IDLE));
+                client.reply(packet.head, StatusType.NEG_ACKNOWLEDGE.frame(Packet.IDLE));
                 client.logger.info("Sleep refused");
             }
         }
@@ -248,11 +211,13 @@ public enum StatusType {
 
     ESCAPE {
         @Override
-        void parse(Client client) throws IOException {
+        void parse(Client client, Packet packet) throws IOException {
             // confirm, no functionality yet
             client.logger.info("Disconnect requested");
-            client.forceSend(StatusType.ACKNOWLEDGE.bytes(Packet.ESCAPE));
-            client.shutdown();
+            ByteBuffer confirm = StatusType.ACKNOWLEDGE.frame(Packet.ESCAPE);
+            confirm.put(confirm.position(), packet.head);
+            client.forceSend(confirm);
+            client.closeWhenSent();
         }
     },
 
@@ -264,11 +229,20 @@ public enum StatusType {
 
     UNIT_SEPARATOR;
 
+    static final StatusType[] VALUES = values();
+
     public static StatusType fromOrdinal(int ordinal) {
-        return values()[ordinal];
+        return VALUES[ordinal];
     }
 
-    void parse(Client client) throws IOException {
+    /**
+     * The status for a code, or null if the protocol doesn't define one.
+     */
+    public static StatusType lookup(int code) {
+        return (code >= 0 && code < VALUES.length) ? VALUES[code] : null;
+    }
+
+    void parse(Client client, Packet packet) throws IOException {
         throw new UnsupportedOperationException("Invalid status value encountered");
     }
 
@@ -288,4 +262,57 @@ public enum StatusType {
         throw new UnsupportedOperationException("Packet type does not have data section");
     }
 
+    ByteBuffer frame() {
+        return frame(Packet.NULL, Packet.NULL);
+    }
+
+    ByteBuffer frame(byte control1) {
+        return frame(control1, Packet.NULL);
+    }
+
+    /**
+     * Encode a header-only packet into a pooled buffer, ready to be handed to <tt>Client.send</tt>.
+     */
+    ByteBuffer frame(byte control1, byte control2) {
+        ByteBuffer ret = BufferPool.DEFAULT.acquire(HEADER_LEN);
+        ret.put(Packet.NULL);
+        ret.put((byte) this.ordinal());
+        ret.put(control1);
+        ret.put(control2);
+        ret.flip();
+        return ret;
+    }
+
+    ByteBuffer frame(byte[] data) {
+        throw new UnsupportedOperationException("Packet type does not have data section");
+    }
+
+    /**
+     * Encode under a <tt>START_HEADER</tt> extended header, which carries this status and a single
+     * control byte followed by a 32-bit body length, so the body is not limited by the header flags.
+     */
+    ByteBuffer extended(byte control, byte[] data) {
+        ByteBuffer ret = BufferPool.DEFAULT.acquire(EXTENDED_LEN + data.length);
+        ret.put(Packet.NULL);
+        ret.put(Packet.START_HEADER);
+        ret.put((byte) this.ordinal());
+        ret.put(control);
+        ret.putInt(data.length);
+        ret.put(data);
+        ret.flip();
+        return ret;
+    }
+
+    byte[] extendedBytes(byte control, byte[] data) {
+        byte[] ret = new byte[EXTENDED_LEN + data.length];
+        ByteBuffer.wrap(ret)
+                .put(Packet.NULL)
+                .put(Packet.START_HEADER)
+                .put((byte) this.ordinal())
+                .put(control)
+                .putInt(data.length)
+                .put(data);
+        return ret;
+    }
+
 }
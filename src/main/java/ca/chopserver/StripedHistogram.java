@@ -0,0 +1,72 @@
+package ca.chopserver;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <tt>LatencyHistogram</tt> buckets that any number of threads can record into at once. Counts are split
+ * over a few stripes picked by thread, so recording threads rarely share a cache line, and are summed
+ * into a plain histogram whenever a snapshot is taken.
+ */
+public class StripedHistogram {
+
+    public static final int DEFAULT_STRIPES = Integer.highestOneBit(Math.min(Runtime.getRuntime().availableProcessors(), 4));
+
+    static final int BUCKETS = LatencyHistogram.SUB_COUNT + LatencyHistogram.MAX_SHIFT * LatencyHistogram.HALF_COUNT;
+
+    AtomicLongArray[] stripes;
+    int mask;
+    LongAdder sum;
+    LongAccumulator max;
+
+    public StripedHistogram() {
+        this(DEFAULT_STRIPES);
+    }
+
+    /**
+     * Create a histogram over <tt>stripes</tt> stripes, rounded down to a power of two.
+     */
+    public StripedHistogram(int stripes) {
+        int count = Integer.highestOneBit(Math.max(stripes, 1));
+        this.stripes = new AtomicLongArray[count];
+        for (int i = 0; i < count; i++) {
+            this.stripes[i] = new AtomicLongArray(BUCKETS);
+        }
+        mask = count - 1;
+        sum = new LongAdder();
+        max = new LongAccumulator(Math::max, 0);
+    }
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+
+        int stripe = (int) Thread.currentThread().threadId() & mask;
+        stripes[stripe].incrementAndGet(LatencyHistogram.index(value));
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    /**
+     * Sum every stripe into a histogram of its own, consistent to within whatever is recorded meanwhile.
+     */
+    public LatencyHistogram snapshot() {
+        LatencyHistogram ret = new LatencyHistogram();
+        for (int i = 0; i < BUCKETS; i++) {
+            long count = 0;
+            for (AtomicLongArray stripe : stripes) {
+                count += stripe.get(i);
+            }
+            if (count > 0) {
+                ret.counts[i] = count;
+                ret.total += count;
+                ret.min = Math.min(ret.min, LatencyHistogram.lowest(i));
+            }
+        }
+        ret.sum = sum.sum();
+        ret.max = max.get();
+        return ret;
+    }
+}
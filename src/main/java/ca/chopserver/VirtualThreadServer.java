@@ -0,0 +1,268 @@
+package ca.chopserver;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Alternative to the selector based <tt>Server</tt> that gives every connection a virtual thread to read
+ * and another to write, both on blocking channels. Frames go through the same <tt>FrameDecoder</tt> and
+ * <tt>HandlerRegistry</tt>, but handlers run on the connection's reader thread, so one that blocks only
+ * holds up its own connection.
+ * <p>
+ * Connection limits, watermarks and frame limits behave as they do for <tt>Server</tt>. Timeouts for
+ * correlated requests run on one shared wheel; heartbeats are left to the selector engine.
+ */
+public class VirtualThreadServer implements Runnable {
+
+    public ServerSocketChannel socket;
+    public ConnectionRegistry registry;
+    public HandlerRegistry handlers;
+    public Metrics metrics;
+    public WheelTimer timer;
+    public Logger logger;
+
+    public int window;
+    public volatile int outgoingCapacity;
+    public volatile int maxSection;
+    public volatile int maxFrame;
+    public volatile long highWatermark;
+    public volatile long lowWatermark;
+    public volatile Client.Backpressure backpressure;
+
+    Selector timerSelector;
+    InterestQueue timerInterests;
+    volatile Thread acceptor;
+
+    public VirtualThreadServer(SocketAddress bind, int window) throws IOException {
+        socket = ServerSocketChannel.open();
+        logger = Logger.getLogger(bind.toString());
+
+        this.window = window;
+        outgoingCapacity = 0;
+        maxSection = DelimiterScanner.DEFAULT_MAX;
+        maxFrame = FrameDecoder.DEFAULT_MAX_FRAME;
+        highWatermark = Client.DEFAULT_HIGH_WATERMARK;
+        lowWatermark = Client.DEFAULT_LOW_WATERMARK;
+        backpressure = Client.Backpressure.BLOCK;
+
+        handlers = HandlerRegistry.defaults();
+        registry = new ConnectionRegistry();
+        registry.onFree = () -> LockSupport.unpark(acceptor);
+        metrics = new Metrics(registry);
+
+        // a selector with no channels is only there to sleep the timer thread between ticks
+        timerSelector = Selector.open();
+        timerInterests = new InterestQueue(timerSelector);
+        timer = new WheelTimer(timerInterests);
+
+        socket.bind(bind);
+        logger.info("Bound and accepting connections on " + bind + " with a virtual thread per connection");
+    }
+
+    // Acceptor runner, blocks in accept and starts two virtual threads per connection
+    @Override
+    public void run() {
+        acceptor = Thread.currentThread();
+
+        Thread ticker = new Thread(this::tick, Thread.currentThread().getName() + "-timer");
+        ticker.setDaemon(true);
+        ticker.start();
+
+        while (true) {
+            try {
+                // at the limit, wait for a slot rather than accepting, the kernel backlog holds the excess
+                while (registry.isFull()) {
+                    LockSupport.park(this);
+                }
+
+                // only this thread takes slots, so one is still free unless the limit was lowered meanwhile
+                SocketChannel incoming = socket.accept();
+                if (!registry.reserve()) {
+                    incoming.close();
+                    continue;
+                }
+
+                if (logger.isLoggable(Level.INFO)) {
+                    logger.info("New client " + incoming.getRemoteAddress());
+                }
+                start(incoming);
+            } catch (ClosedChannelException cce) {
+                return;
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.exit(1);
+            }
+        }
+    }
+
+    void start(SocketChannel incoming) {
+        Client client;
+        try {
+            client = new Client(incoming, window);
+        } catch (IOException ioe) {
+            logger.info("Failed to register accepted connection");
+            registry.unreserve();
+            try {
+                incoming.close();
+            } catch (IOException ignored) {
+            }
+            return;
+        }
+
+        client.outgoing.capacity = outgoingCapacity;
+        client.decoder.scanner.max = maxSection;
+        client.decoder.maxFrame = maxFrame;
+        client.highWatermark = highWatermark;
+        client.lowWatermark = lowWatermark;
+        client.backpressure = backpressure;
+        client.timer = timer;
+        client.handlers = handlers;
+        client.metrics = metrics;
+        registry.add(client);
+        if (metrics != null) {
+            metrics.accepted();
+        }
+
+        // whichever thread finishes second hands the client's buffers back
+        AtomicInteger running = new AtomicInteger(2);
+        Thread writer = Thread.ofVirtual().name(client.remote + "-writer").unstarted(() -> writeLoop(client, running));
+        client.writer = writer;
+        writer.start();
+        Thread.ofVirtual().name(client.remote + "-reader").start(() -> readLoop(client, running));
+    }
+
+    void readLoop(Client client, AtomicInteger running) {
+        client.reader = Thread.currentThread();
+        try {
+            while (true) {
+                // hold off reading while replies are backed up past the high watermark
+                client.awaitDrain();
+                client.read();
+            }
+        } catch (IOException ioe) {
+            logger.info(() -> "Client " + client.remote + " disconnected");
+        } finally {
+            finish(client, running);
+        }
+    }
+
+    void writeLoop(Client client, AtomicInteger running) {
+        try {
+            while (client.socket.isOpen()) {
+                if (client.outgoing.isEmpty() && !client.closing) {
+                    // unparked by requestWrite whenever something is queued
+                    LockSupport.park(client);
+                    continue;
+                }
+                client.write();
+            }
+        } catch (IOException ioe) {
+            logger.info(() -> "Client " + client.remote + " failed to take outgoing data");
+        } finally {
+            finish(client, running);
+        }
+    }
+
+    void finish(Client client, AtomicInteger running) {
+        try {
+            client.shutdown();
+        } catch (IOException ignored) {
+        }
+
+        if (running.decrementAndGet() == 0 && registry.remove(client)) {
+            client.release();
+        }
+    }
+
+    void tick() {
+        timerInterests.own();
+        while (true) {
+            try {
+                timerSelector.select(timer.timeout());
+                timer.advance();
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.exit(1);
+            }
+        }
+    }
+
+    /**
+     * Bound every connection's outgoing queue to <tt>frames</tt> queued frames, zero for unbounded.
+     * Applies to connections accepted from now on.
+     */
+    public void limitOutgoing(int frames) {
+        outgoingCapacity = frames;
+    }
+
+    /**
+     * Refuse unknown length text sections longer than <tt>bytes</tt>.
+     * Applies to connections accepted from now on.
+     */
+    public void limitSection(int bytes) {
+        maxSection = bytes;
+    }
+
+    /**
+     * Drop connections that declare an extended frame body longer than <tt>bytes</tt>.
+     * Applies to connections accepted from now on.
+     */
+    public void limitFrame(int bytes) {
+        maxFrame = bytes;
+    }
+
+    /**
+     * Hold at most <tt>connections</tt> connections at once, zero for unlimited. Beyond that, connections
+     * wait in the kernel backlog until one closes.
+     */
+    public void limitConnections(int connections) {
+        registry.max = connections;
+        LockSupport.unpark(acceptor);
+    }
+
+    /**
+     * Stop reading from a connection once <tt>high</tt> bytes are queued for it, until they drain to
+     * <tt>low</tt>, with <tt>policy</tt> deciding what happens to sends in between. Zero disables the
+     * watermarks; applies to connections accepted from now on.
+     */
+    public void limitPending(long high, long low, Client.Backpressure policy) {
+        if (high > 0 && (low < 0 || low >= high)) {
+            throw new IllegalArgumentException("Low watermark must sit below the high watermark");
+        }
+
+        highWatermark = high;
+        lowWatermark = low;
+        backpressure = policy;
+    }
+
+    /**
+     * Send one encoded frame to every connection, see <tt>ConnectionRegistry.broadcast</tt>.
+     */
+    public int broadcast(ByteBuffer frame) {
+        return registry.broadcast(frame, client -> true);
+    }
+
+    /**
+     * Send one encoded frame to every connection in <tt>group</tt>.
+     */
+    public int broadcast(String group, ByteBuffer frame) {
+        return registry.broadcast(frame, client -> client.groups.contains(group));
+    }
+
+    /**
+     * Send one encoded frame to every connection <tt>filter</tt> accepts.
+     */
+    public int broadcast(ByteBuffer frame, Predicate<Client> filter) {
+        return registry.broadcast(frame, filter);
+    }
+}
@@ -0,0 +1,184 @@
+package ca.chopserver;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hashed wheel of timeouts driven by a selector loop rather than a thread of its own. Timeouts hash into
+ * one of a fixed number of buckets by their deadline tick, so scheduling and cancelling are constant time
+ * however many connections are being timed. The owning loop selects for at most <tt>timeout()</tt> and
+ * calls <tt>advance()</tt> on every wakeup; tasks run on that thread, up to one tick late and never early.
+ * <p>
+ * Timeouts may be scheduled and cancelled from any thread, the wheel itself is only touched by its owner.
+ */
+public class WheelTimer {
+
+    public static final int DEFAULT_WHEEL_SIZE = 512;
+    public static final long DEFAULT_TICK_MILLIS = 100;
+
+    /**
+     * Handle to a scheduled task.
+     */
+    public static final class Timeout {
+        final Runnable task;
+        final long deadline;
+        long rounds;
+        Timeout next;
+        volatile boolean cancelled;
+
+        Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Stop the task from running, it is dropped from the wheel when its bucket next comes around.
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    public long tickMillis;
+
+    Timeout[] buckets;
+    int mask;
+    long start;
+    long tick;
+
+    Queue<Timeout> added;
+    AtomicInteger size;
+    InterestQueue interests;
+
+    /**
+     * Create a wheel of 512 ticks of 100 milliseconds.
+     */
+    public WheelTimer(InterestQueue interests) {
+        this(interests, DEFAULT_TICK_MILLIS, DEFAULT_WHEEL_SIZE);
+    }
+
+    /**
+     * Create a wheel for the loop draining <tt>interests</tt>, whose selector is woken when a timeout
+     * is scheduled from another thread while the wheel is empty. <tt>wheelSize</tt> is rounded up to
+     * a power of two.
+     */
+    public WheelTimer(InterestQueue interests, long tickMillis, int wheelSize) {
+        if (tickMillis <= 0 || wheelSize <= 0) {
+            throw new IllegalArgumentException("Tick and wheel size must be positive");
+        }
+
+        this.interests = interests;
+        this.tickMillis = tickMillis;
+
+        int buckets = Integer.highestOneBit(wheelSize);
+        if (buckets < wheelSize) {
+            buckets <<= 1;
+        }
+        this.buckets = new Timeout[buckets];
+        mask = buckets - 1;
+
+        start = now();
+        tick = 0;
+        added = new ConcurrentLinkedQueue<>();
+        size = new AtomicInteger();
+    }
+
+    /**
+     * Run <tt>task</tt> on the owning loop once <tt>delayMillis</tt> has passed, safe to call from any thread.
+     */
+    public Timeout schedule(long delayMillis, Runnable task) {
+        Timeout timeout = new Timeout(task, now() + Math.max(delayMillis, 0));
+        added.offer(timeout);
+
+        // a loop blocked with nothing to time has to be woken to start ticking
+        if (size.getAndIncrement() == 0 && !interests.isOwner()) {
+            interests.selector.wakeup();
+        }
+        return timeout;
+    }
+
+    /**
+     * Milliseconds the owning loop may block in <tt>select</tt>, zero meaning indefinitely.
+     */
+    public long timeout() {
+        if (size.get() == 0) {
+            return 0;
+        }
+        return Math.max(1, start + (tick + 1) * tickMillis - now());
+    }
+
+    /**
+     * Run every task whose tick has passed, owning thread only.
+     */
+    public void advance() {
+        long now = now();
+        while (start + (tick + 1) * tickMillis <= now) {
+            transfer();
+            expire(tick & mask);
+            tick++;
+        }
+    }
+
+    /**
+     * Timeouts scheduled and not yet run or cleared out after cancelling.
+     */
+    public int size() {
+        return size.get();
+    }
+
+    void transfer() {
+        Timeout timeout;
+        while ((timeout = added.poll()) != null) {
+            if (timeout.cancelled) {
+                size.decrementAndGet();
+                continue;
+            }
+
+            // anything already due goes in the current bucket
+            long due = Math.max((timeout.deadline - start) / tickMillis, tick);
+            timeout.rounds = (due - tick) / buckets.length;
+
+            int index = (int) (due & mask);
+            timeout.next = buckets[index];
+            buckets[index] = timeout;
+        }
+    }
+
+    void expire(long index) {
+        Timeout previous = null;
+        Timeout timeout = buckets[(int) index];
+        while (timeout != null) {
+            Timeout next = timeout.next;
+
+            if (timeout.cancelled || timeout.rounds == 0) {
+                // unlink before running so a task that throws is not run again
+                if (previous == null) {
+                    buckets[(int) index] = next;
+                } else {
+                    previous.next = next;
+                }
+                timeout.next = null;
+                size.decrementAndGet();
+
+                if (!timeout.cancelled) {
+                    timeout.task.run();
+                }
+            } else {
+                timeout.rounds--;
+                previous = timeout;
+            }
+
+            timeout = next;
+        }
+    }
+
+    static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+}
@@ -0,0 +1,101 @@
+package ca.chopserver;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Encoding of <tt>START_TEXT</tt> frames, both as arrays and into pooled buffers, and decoding them
+ * through a connection's <tt>FrameDecoder</tt> down to <tt>START_TEXT.parse</tt>. Payloads up to 127
+ * bytes fit a single segment, longer ones go under an extended header.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms1g", "-Xmx1g", "-XX:+AlwaysPreTouch"})
+public class CodecBenchmark {
+
+    @Param({"16", "127", "1024", "65536"})
+    public int size;
+
+    byte[] payload;
+    byte[] encoded;
+
+    ServerSocketChannel acceptor;
+    SocketChannel peer;
+    Client client;
+
+    @Setup
+    public void setup() throws IOException {
+        Logger.getLogger("").setLevel(Level.WARNING);
+
+        payload = new byte[size];
+        for (int i = 0; i < size; i++) {
+            payload[i] = (byte) ('a' + i % 26);
+        }
+        encoded = StatusType.START_TEXT.bytes(payload);
+
+        // a blocking mode connection nobody writes for, its replies are cleared after every decode
+        acceptor = ServerSocketChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        peer = SocketChannel.open(acceptor.getLocalAddress());
+        client = new Client(acceptor.accept(), 255);
+        client.highWatermark = 0;
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        client.shutdown();
+        client.release();
+        peer.close();
+        acceptor.close();
+    }
+
+    @Benchmark
+    public byte[] encodeBytes() {
+        return StatusType.START_TEXT.bytes(payload);
+    }
+
+    @Benchmark
+    public int encodeFrame() {
+        ByteBuffer frame = StatusType.START_TEXT.frame(payload);
+        int ret = frame.remaining();
+        BufferPool.DEFAULT.release(frame);
+        return ret;
+    }
+
+    @Benchmark
+    public byte[] decode() throws IOException {
+        // feed the frame in as reads would, as much as the decoder's buffer takes at a time
+        ByteBuffer in = ByteBuffer.wrap(encoded);
+        while (in.hasRemaining()) {
+            ByteBuffer into = client.decoder.buffer();
+            int length = Math.min(into.remaining(), in.remaining());
+            into.put(in.slice(in.position(), length));
+            in.position(in.position() + length);
+            client.decoder.decode(client);
+        }
+
+        ByteBuffer reply;
+        while ((reply = client.outgoing.poll()) != null) {
+            BufferPool.DEFAULT.release(reply);
+        }
+        return client.incoming.poll();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(CodecBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,93 @@
+package ca.chopserver;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Status lookup and handler dispatch over a fixed, seeded mix of codes: the cached <tt>fromOrdinal</tt>
+ * and <tt>lookup</tt> against the <tt>values()</tt> clone they replaced, and a full pass through a
+ * <tt>HandlerRegistry</tt> including its <tt>ENQUIRY</tt> sub-table.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms1g", "-Xmx1g", "-XX:+AlwaysPreTouch"})
+public class DispatchBenchmark {
+
+    static final int CODES = 1024;
+
+    byte[] statuses;
+    byte[] controls;
+    int next;
+
+    HandlerRegistry registry;
+    Packet packet;
+    long handled;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        statuses = new byte[CODES];
+        controls = new byte[CODES];
+        for (int i = 0; i < CODES; i++) {
+            statuses[i] = (byte) random.nextInt(StatusType.VALUES.length);
+            controls[i] = (byte) random.nextInt(EnquiryType.VALUES.length);
+        }
+
+        // every code goes to a handler that only counts, so the lookup is all that is measured
+        PacketHandler counter = this::count;
+        registry = new HandlerRegistry();
+        for (int i = 0; i < HandlerRegistry.CODES; i++) {
+            registry.register((byte) i, counter);
+        }
+        for (EnquiryType type : EnquiryType.values()) {
+            registry.register(StatusType.ENQUIRY, (byte) type.ordinal(), counter);
+        }
+        packet = new Packet();
+    }
+
+    void count(Client client, Packet packet) {
+        handled++;
+    }
+
+    int code() {
+        next = (next + 1) & (CODES - 1);
+        return next;
+    }
+
+    @Benchmark
+    public StatusType valuesClone() {
+        return StatusType.values()[statuses[code()]];
+    }
+
+    @Benchmark
+    public StatusType fromOrdinal() {
+        return StatusType.fromOrdinal(statuses[code()]);
+    }
+
+    @Benchmark
+    public StatusType lookup() {
+        return StatusType.lookup(statuses[code()]);
+    }
+
+    @Benchmark
+    public long registry() throws IOException {
+        int i = code();
+        packet.status = statuses[i];
+        packet.control1 = controls[i];
+        registry.dispatch(null, packet);
+        return handled;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(DispatchBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,110 @@
+package ca.chopserver;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Formatter;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+/**
+ * Compares <tt>LogFormatter</tt> against the synchronized <tt>String.format</tt> formatter it replaced,
+ * on one thread and on four contending threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LogFormatterBenchmark {
+
+    /**
+     * The formatter as it was before patterns were pre-parsed.
+     */
+    static class LegacyLogFormatter extends Formatter {
+        final String pattern;
+        final Date dat = new Date();
+
+        LegacyLogFormatter(String pattern) {
+            this.pattern = pattern;
+        }
+
+        @Override
+        public synchronized String format(LogRecord record) {
+            dat.setTime(record.getMillis());
+            String source;
+            if (record.getSourceClassName() != null) {
+                source = record.getSourceClassName();
+                if (record.getSourceMethodName() != null) {
+                    source += " " + record.getSourceMethodName();
+                }
+            } else {
+                source = record.getLoggerName();
+            }
+            String message = formatMessage(record);
+            String throwable = "";
+            if (record.getThrown() != null) {
+                StringWriter sw = new StringWriter();
+                PrintWriter pw = new PrintWriter(sw);
+                pw.println();
+                record.getThrown().printStackTrace(pw);
+                pw.close();
+                throwable = sw.toString();
+            }
+            return String.format(pattern, dat, source, record.getLoggerName(), record.getLevel().getLocalizedName(),
+                    message, throwable, Thread.currentThread().getName());
+        }
+    }
+
+    @Param({"short", "dated"})
+    public String style;
+
+    Formatter current;
+    Formatter legacy;
+    LogRecord record;
+
+    @Setup
+    public void setup() {
+        String pattern = style.equals("short") ? LogFormatter.forma2 : LogFormatter.format;
+        current = new LogFormatter(pattern);
+        legacy = new LegacyLogFormatter(pattern);
+
+        record = new LogRecord(Level.INFO, "Incoming packet style: 0x5A");
+        record.setLoggerName("/127.0.0.1:5656");
+        record.setSourceClassName("ca.chopserver.Client");
+        record.setSourceMethodName("dispatch");
+    }
+
+    @Benchmark
+    public String current() {
+        return current.format(record);
+    }
+
+    @Benchmark
+    public String legacy() {
+        return legacy.format(record);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public String currentContended() {
+        return current.format(record);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public String legacyContended() {
+        return legacy.format(record);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(LogFormatterBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,170 @@
+package ca.chopserver;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * End to end enquiry and acknowledge over loopback against a running server, with 1, 100 and 10,000
+ * connections open and either engine. <tt>roundTrip</tt> samples the latency of one enquiry at a time,
+ * <tt>pipelined</tt> measures messages per second with 64 enquiries in flight, spread over as many
+ * connections as there are.
+ * <p>
+ * Every connection takes two descriptors in this one process, so 10,000 connections need
+ * <tt>ulimit -n</tt> of at least 32768.
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g", "-XX:+AlwaysPreTouch"})
+public class LoopbackBenchmark {
+
+    static final int IN_FLIGHT = 64;
+    static final byte[] ENQUIRY = {Packet.NULL, Packet.ENQUIRY, Packet.NORMAL, Packet.NULL};
+
+    @Param({"1", "100", "10000"})
+    public int connections;
+
+    @Param({"selector", "virtual"})
+    public String engine;
+
+    SocketChannel[] peers;
+    ByteBuffer[] enquiries;
+    ByteBuffer acks;
+    int next;
+
+    Server server;
+    VirtualThreadServer virtual;
+
+    @Setup
+    public void setup() throws Exception {
+        Logger.getLogger("").setLevel(Level.WARNING);
+
+        SocketAddress bind = new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+        Runnable instance;
+        ConnectionRegistry registry;
+        SocketAddress local;
+        if (engine.equals("virtual")) {
+            virtual = new VirtualThreadServer(bind, 255);
+            instance = virtual;
+            registry = virtual.registry;
+            local = virtual.socket.getLocalAddress();
+        } else {
+            server = new Server(bind, 255, Runtime.getRuntime().availableProcessors());
+            instance = server;
+            registry = server.registry;
+            local = server.socket.getLocalAddress();
+        }
+        Thread thread = new Thread(instance, "loopback-server");
+        thread.setDaemon(true);
+        thread.start();
+
+        peers = new SocketChannel[connections];
+        for (int i = 0; i < connections; i++) {
+            peers[i] = SocketChannel.open(local);
+            peers[i].socket().setTcpNoDelay(true);
+        }
+
+        // measure only once every connection is registered and idle
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+        while (registry.accepted() < connections) {
+            if (System.nanoTime() > deadline) {
+                throw new IllegalStateException("Only " + registry.accepted() + " of " + connections + " connections registered");
+            }
+            Thread.sleep(10);
+        }
+
+        // up to 64 connections get an equal share of the enquiries, any more take turns
+        int share = IN_FLIGHT / Math.min(connections, IN_FLIGHT);
+        enquiries = new ByteBuffer[2];
+        enquiries[0] = ByteBuffer.allocateDirect(ENQUIRY.length);
+        enquiries[0].put(ENQUIRY).flip();
+        enquiries[1] = ByteBuffer.allocateDirect(ENQUIRY.length * share);
+        for (int i = 0; i < share; i++) {
+            enquiries[1].put(ENQUIRY);
+        }
+        enquiries[1].flip();
+        acks = ByteBuffer.allocateDirect(Packet.HEADER_LEN * share);
+        next = 0;
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        for (SocketChannel peer : peers) {
+            peer.close();
+        }
+        if (server != null) {
+            server.socket.close();
+        }
+        if (virtual != null) {
+            virtual.socket.close();
+        }
+    }
+
+    SocketChannel peer() {
+        SocketChannel ret = peers[next];
+        next = (next + 1 == connections) ? 0 : next + 1;
+        return ret;
+    }
+
+    void send(SocketChannel peer, ByteBuffer frames) throws IOException {
+        frames.rewind();
+        while (frames.hasRemaining()) {
+            peer.write(frames);
+        }
+    }
+
+    void await(SocketChannel peer, int frames) throws IOException {
+        acks.clear().limit(Packet.HEADER_LEN * frames);
+        while (acks.hasRemaining()) {
+            if (peer.read(acks) < 0) {
+                throw new IOException("Server closed the connection");
+            }
+        }
+        if (acks.get(Packet.PACKET_STATUS) != Packet.ACKNOWLEDGE) {
+            throw new IOException("Enquiry was not acknowledged");
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    public void roundTrip() throws IOException {
+        SocketChannel peer = peer();
+        send(peer, enquiries[0]);
+        await(peer, 1);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OperationsPerInvocation(IN_FLIGHT)
+    public void pipelined() throws IOException {
+        int span = Math.min(connections, IN_FLIGHT);
+        int share = IN_FLIGHT / span;
+        int first = next;
+
+        for (int i = 0; i < span; i++) {
+            send(peer(), enquiries[1]);
+        }
+
+        next = first;
+        for (int i = 0; i < span; i++) {
+            await(peer(), share);
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(LoopbackBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,104 @@
+package ca.chopserver;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Control;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <tt>Client.send</tt> queueing with one sender and with four contending senders, each group against a
+ * single consumer taking frames off the queue the way the writer does. Only queueing is measured, the
+ * consumer hands frames straight back to the pool instead of writing them.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms1g", "-Xmx1g", "-XX:+AlwaysPreTouch"})
+public class SendBenchmark {
+
+    static final int QUEUED = 1 << 16;
+
+    ServerSocketChannel acceptor;
+    SocketChannel peer;
+    Client client;
+
+    @Setup
+    public void setup() throws IOException {
+        Logger.getLogger("").setLevel(Level.WARNING);
+
+        acceptor = ServerSocketChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        peer = SocketChannel.open(acceptor.getLocalAddress());
+        client = new Client(acceptor.accept(), 255);
+        client.highWatermark = 0;
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        client.shutdown();
+        client.release();
+        peer.close();
+        acceptor.close();
+    }
+
+    void send(Control control) throws IOException {
+        // hold senders back once the consumer falls far behind rather than growing the queue without end
+        while (client.outgoing.size() >= QUEUED && !control.stopMeasurement) {
+            Thread.onSpinWait();
+        }
+        client.send(StatusType.ACKNOWLEDGE.frame(Packet.ENQUIRY));
+    }
+
+    int take() {
+        ByteBuffer frame = client.outgoing.poll();
+        if (frame == null) {
+            return 0;
+        }
+        BufferPool.DEFAULT.release(frame);
+        return 1;
+    }
+
+    @Benchmark
+    @Group("single")
+    @GroupThreads(1)
+    public void singleSend(Control control) throws IOException {
+        send(control);
+    }
+
+    @Benchmark
+    @Group("single")
+    @GroupThreads(1)
+    public int singleTake() {
+        return take();
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(4)
+    public void contendedSend(Control control) throws IOException {
+        send(control);
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(1)
+    public int contendedTake() {
+        return take();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(SendBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,201 @@
+package ca.chopserver;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * TLS against plaintext on a running selector server over loopback, with a self-signed key generated by
+ * <tt>keytool</tt> at setup. <tt>handshake</tt> opens a connection, has one enquiry acknowledged and closes
+ * it, a full handshake every time under TLS, while <tt>resume</tt> does the same from the client's session
+ * cache. <tt>pipelined</tt> keeps 64 enquiries in flight on one open connection and <tt>bulk</tt> sends
+ * 16 KB text frames, 8 at a time, so bytes per second is its score times 16 KB.
+ * <p>
+ * The client end runs in the same process on blocking sockets, its share of the crypto is included.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms1g", "-Xmx1g", "-XX:+AlwaysPreTouch"})
+public class TlsBenchmark {
+
+    static final int IN_FLIGHT = 64;
+    static final int BULK = 16 * 1024;
+    static final int BULK_FRAMES = 8;
+    static final String PASSWORD = "changeit";
+
+    @Param({"plain", "tls"})
+    public String transport;
+
+    Path directory;
+    SSLContext context;
+    Server server;
+    InetSocketAddress local;
+
+    Socket connection;
+    InputStream in;
+    OutputStream out;
+
+    byte[] enquiry;
+    byte[] enquiries;
+    byte[] frames;
+    byte[] acks;
+
+    @Setup
+    public void setup() throws Exception {
+        Logger.getLogger("").setLevel(Level.WARNING);
+
+        if (transport.equals("tls")) {
+            directory = Files.createTempDirectory("chopserver-tls");
+            Path keystore = directory.resolve("benchmark.p12");
+            keytool(keystore);
+            context = SecureChannel.context(keystore, PASSWORD.toCharArray());
+        }
+
+        server = new Server(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 255, 1);
+        if (context != null) {
+            server.secure(context);
+        }
+        local = (InetSocketAddress) server.socket.getLocalAddress();
+        Thread thread = new Thread(server, "tls-server");
+        thread.setDaemon(true);
+        thread.start();
+
+        enquiry = new byte[]{Packet.NULL, Packet.ENQUIRY, Packet.NORMAL, Packet.NULL};
+        enquiries = new byte[enquiry.length * IN_FLIGHT];
+        for (int i = 0; i < IN_FLIGHT; i++) {
+            System.arraycopy(enquiry, 0, enquiries, i * enquiry.length, enquiry.length);
+        }
+
+        // extended text frames, each acknowledged once whole
+        ByteBuffer encoded = ByteBuffer.allocate((Packet.EXTENDED_LEN + BULK) * BULK_FRAMES);
+        for (int i = 0; i < BULK_FRAMES; i++) {
+            encoded.put(new byte[]{Packet.NULL, Packet.START_HEADER, Packet.START_TEXT, Packet.NULL});
+            encoded.putInt(BULK);
+            for (int j = 0; j < BULK; j++) {
+                encoded.put((byte) ('a' + j % 26));
+            }
+        }
+        frames = encoded.array();
+        acks = new byte[Packet.HEADER_LEN * IN_FLIGHT];
+
+        connection = open();
+        in = connection.getInputStream();
+        out = connection.getOutputStream();
+        exchange(enquiry, 1);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        connection.close();
+        server.socket.close();
+        if (directory != null) {
+            try (Stream<Path> files = Files.walk(directory)) {
+                for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+
+    static void keytool(Path keystore) throws IOException, InterruptedException {
+        Path keytool = Path.of(System.getProperty("java.home"), "bin", "keytool");
+        Process process = new ProcessBuilder(keytool.toString(), "-genkeypair",
+                "-alias", "chopserver", "-keyalg", "EC", "-groupname", "secp256r1",
+                "-dname", "CN=localhost", "-validity", "2", "-storetype", "PKCS12",
+                "-keystore", keystore.toString(), "-storepass", PASSWORD, "-keypass", PASSWORD)
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .start();
+        if (process.waitFor() != 0) {
+            throw new IOException("keytool failed to generate a key, exit code " + process.exitValue());
+        }
+    }
+
+    Socket open() throws IOException {
+        Socket ret = (context == null)
+                ? new Socket(local.getAddress(), local.getPort())
+                : context.getSocketFactory().createSocket(local.getAddress(), local.getPort());
+        ret.setTcpNoDelay(true);
+
+        // reset on close so thousands of connections a second don't exhaust ports in TIME_WAIT
+        ret.setSoLinger(true, 0);
+        return ret;
+    }
+
+    void exchange(byte[] request, int answers) throws IOException {
+        out.write(request);
+        out.flush();
+        read(in, answers);
+    }
+
+    void read(InputStream from, int answers) throws IOException {
+        int length = Packet.HEADER_LEN * answers;
+        if (from.readNBytes(acks, 0, length) < length) {
+            throw new IOException("Server closed the connection");
+        }
+        if (acks[Packet.PACKET_STATUS] != Packet.ACKNOWLEDGE) {
+            throw new IOException("Request was not acknowledged");
+        }
+    }
+
+    void connect(boolean resumable) throws IOException {
+        try (Socket socket = open()) {
+            OutputStream to = socket.getOutputStream();
+            to.write(enquiry);
+            to.flush();
+            read(socket.getInputStream(), 1);
+
+            // a session that can't be resumed forces a full handshake next time
+            if (!resumable && socket instanceof SSLSocket secure) {
+                secure.getSession().invalidate();
+            }
+        }
+    }
+
+    @Benchmark
+    public void handshake() throws IOException {
+        connect(false);
+    }
+
+    @Benchmark
+    public void resume() throws IOException {
+        connect(true);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(IN_FLIGHT)
+    public void pipelined() throws IOException {
+        exchange(enquiries, IN_FLIGHT);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BULK_FRAMES)
+    public void bulk() throws IOException {
+        exchange(frames, BULK_FRAMES);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(TlsBenchmark.class.getSimpleName()).build()).run();
+    }
+}